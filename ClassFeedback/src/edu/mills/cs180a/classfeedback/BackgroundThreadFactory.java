@@ -0,0 +1,34 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Process;
+
+/**
+ * Creates named threads that run at background priority, so that work such
+ * as disk I/O and decoding never competes with the main thread for the CPU.
+ * Every thread this application starts for itself comes from one of these.
+ */
+class BackgroundThreadFactory implements ThreadFactory {
+    private final String mName;
+
+    /**
+     * Constructs a factory whose threads have the specified name.
+     *
+     * @param name the name of the threads, usually the owning class's tag
+     */
+    BackgroundThreadFactory(String name) {
+        mName = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }
+        }, mName);
+    }
+}
@@ -0,0 +1,152 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Set;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Stores the bodies of large comments in files, in a directory next to the
+ * database, so that rows hold only a short reference to them.  Bodies are
+ * written once and never modified.  They are read by mapping the file into
+ * memory, or streamed through a {@link ParcelFileDescriptor}.
+ *
+ * <P>A body belongs to a row of {@link MySQLiteOpenHelper#TABLE_COMMENT_VERSIONS}
+ * once that row is committed.  Files no longer referenced by any row, because
+ * their version was compacted or their transaction rolled back, are removed by
+ * {@link #sweep(Set)}.
+ */
+class BlobStore {
+    private static final String TAG = "BlobStore";
+    private static final String DIRECTORY_SUFFIX = "-blobs";
+    private static final String PREFIX = "body";
+    private static final String SUFFIX = ".txt";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * How long, in milliseconds, a new file is kept even if no row refers to
+     * it, since its row may not have been committed yet.
+     */
+    static final long SWEEP_GRACE_MILLIS = 60000;
+
+    private final File mDirectory;
+
+    /**
+     * Constructs a store keeping its files in the specified directory, which
+     * is created when the first file is written.
+     *
+     * @param directory the directory
+     */
+    BlobStore(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Constructs a store for the database with the specified name.
+     *
+     * @param context the context in which the database is stored
+     * @param databaseName the file name of the database
+     * @return the store, or {@code null} if either argument is {@code null},
+     *         as for an in-memory database, whose comments are all kept inline
+     */
+    static BlobStore forDatabase(Context context, String databaseName) {
+        if (context == null || databaseName == null) {
+            return null;
+        }
+        return new BlobStore(new File(context.getDatabasePath(databaseName).getPath()
+                + DIRECTORY_SUFFIX));
+    }
+
+    /**
+     * Writes a body to a new file, and waits until it is on disk.
+     *
+     * @param content the body
+     * @return the name by which the body can be read
+     * @throws IOException if the body could not be written
+     */
+    String write(String content) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File file = File.createTempFile(PREFIX, SUFFIX, mDirectory);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(out, UTF_8);
+            writer.write(content);
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            out.close();
+            file.delete();
+            throw e;
+        }
+        out.close();
+        return file.getName();
+    }
+
+    /**
+     * Reads a body by mapping its file into memory.
+     *
+     * @param name the name returned when the body was written
+     * @return the body
+     * @throws IOException if the body could not be read
+     */
+    String read(String name) throws IOException {
+        FileInputStream in = new FileInputStream(new File(mDirectory, name));
+        try {
+            FileChannel channel = in.getChannel();
+            return UTF_8.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                    .toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Opens a body for streaming.  It is encoded in UTF-8.
+     *
+     * @param name the name returned when the body was written
+     * @return a read-only descriptor of the body's file
+     * @throws FileNotFoundException if there is no such body
+     */
+    ParcelFileDescriptor open(String name) throws FileNotFoundException {
+        return ParcelFileDescriptor.open(new File(mDirectory, name),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    /**
+     * Removes the files of bodies that are not referenced, other than those
+     * written within the last {@link #SWEEP_GRACE_MILLIS}.
+     *
+     * @param referenced the names of the bodies referenced by committed rows
+     * @return the number of files removed
+     */
+    int sweep(Set<String> referenced) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - SWEEP_GRACE_MILLIS;
+        int count = 0;
+        for (File file : files) {
+            if (!referenced.contains(file.getName()) && file.lastModified() < cutoff) {
+                if (file.delete()) {
+                    count++;
+                } else {
+                    Log.w(TAG, "Unable to delete " + file);
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -3,28 +3,119 @@
  */
 package edu.mills.cs180a.classfeedback;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
 /**
  * A comment meant for a classmate.
+ *
+ * <P>The body of a long comment may be kept in a {@link BlobStore} rather than
+ * in its row, in which case only a preview of it is read with the row, and
+ * {@link #getContent()} reads the whole body the first time it is called.
+ * Compressed content (see {@link CommentCodec}) is held in its encoded form,
+ * and decoded the first time it is read.
  * 
  * @author ellen.spertus@gmail.com (Ellen Spertus)
  */
 public class Comment {
+    /**
+     * The id of a comment that is not (yet) in the database.
+     */
+    static final long NO_ID = -1;
+    private static final String TAG = "Comment";
     private long mId;
     private String mRecipient;
     private String mContent;
+    // These are null unless the body is stored externally, in which case
+    // mContent holds its preview.
+    private BlobStore mBlobs;
+    private String mBodyName;
+    // These are null unless the content is compressed, in which case
+    // mContent is not used.
+    private byte[] mEncoded;
+    private byte[] mDictionary;
+    // The whole content, once an external body has been read or compressed
+    // content decoded.  Bodies are never changed once written, so this stays
+    // valid as long as the other fields.
+    private volatile String mDecoded;
     
     Comment(long id, String recipient, String content) {
         mId = id;
         mRecipient = recipient;
         mContent = content;
     }
+
+    /**
+     * Constructs a comment whose body is stored in a {@link BlobStore}.
+     *
+     * @param id the unique id
+     * @param recipient the email address of the recipient
+     * @param preview the start of the content
+     * @param blobs the store holding the body
+     * @param bodyName the name of the body in the store
+     */
+    Comment(long id, String recipient, String preview, BlobStore blobs, String bodyName) {
+        set(id, recipient, preview, blobs, bodyName);
+    }
     
+    /**
+     * Overwrites every field of this comment.  This allows one instance to be
+     * reused when reading many rows (see {@link CommentIterator}).
+     *
+     * @param id the unique id
+     * @param recipient the email address of the recipient
+     * @param content the content
+     */
+    void set(long id, String recipient, String content) {
+        set(id, recipient, content, null, null);
+    }
+
+    /**
+     * Overwrites every field of this comment, whose body is stored in a
+     * {@link BlobStore} if {@code bodyName} is not {@code null}.
+     *
+     * @param id the unique id
+     * @param recipient the email address of the recipient
+     * @param content the content, or its start if the body is stored externally
+     * @param blobs the store holding the body, if any
+     * @param bodyName the name of the body in the store, or {@code null}
+     */
+    void set(long id, String recipient, String content, BlobStore blobs, String bodyName) {
+        mId = id;
+        mRecipient = recipient;
+        mContent = content;
+        mBlobs = bodyName == null ? null : blobs;
+        mBodyName = bodyName;
+        mEncoded = null;
+        mDictionary = null;
+        mDecoded = null;
+    }
+
+    /**
+     * Sets the content of this comment to compressed content, which is not
+     * decoded until it is read.
+     *
+     * @param encoded the content, compressed by {@link CommentCodec}
+     * @param dictionary the dictionary with which it was compressed, or {@code null}
+     */
+    void setEncodedContent(byte[] encoded, byte[] dictionary) {
+        mContent = null;
+        mBlobs = null;
+        mBodyName = null;
+        mEncoded = encoded;
+        mDictionary = dictionary;
+        mDecoded = null;
+    }
+
     /**
      * Gets the email address of the recipient.
      *
      * @return the email address of the recipient
      */
-    String getRecipient() {
+    public String getRecipient() {
         return mRecipient;
     }
     
@@ -38,21 +129,90 @@ public class Comment {
     }
     
     /**
-     * Gets the content of the comment.
+     * Gets the content of the comment.  If the body is stored externally, it
+     * is read from its file the first time this is called, so this should not
+     * be called on the main thread for such a comment.  If the file cannot be
+     * read, the preview is returned, and reading is tried again next time.
      *
      * @return the content
      */
-    String getContent() {
-        return mContent;
+    public String getContent() {
+        if (mEncoded != null) {
+            return decode();
+        }
+        if (mBodyName == null) {
+            return mContent;
+        }
+        String body = mDecoded;
+        if (body == null) {
+            try {
+                body = mBlobs.read(mBodyName);
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to read body of comment " + mId + "; using its preview.", e);
+                return mContent;
+            }
+            mDecoded = body;
+        }
+        return body;
+    }
+
+    /**
+     * Gets the content of the comment, or only its start if the body is
+     * stored externally.  This never reads a file.
+     *
+     * @return the content or its preview
+     */
+    String getContentPreview() {
+        return mEncoded != null ? decode() : mContent;
+    }
+
+    // Shared comments may be decoded, or their bodies read, by several
+    // threads at once, which is harmless, since each gets the same text.
+    private String decode() {
+        String decoded = mDecoded;
+        if (decoded == null) {
+            decoded = CommentCodec.inflate(mEncoded, mDictionary);
+            mDecoded = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Checks whether the body of this comment is stored externally, so that
+     * {@link #getContentPreview()} may return only part of it.
+     *
+     * @return {@code true} if the body is in a {@link BlobStore}
+     */
+    boolean isContentExternal() {
+        return mBodyName != null;
+    }
+
+    /**
+     * Opens the externally stored body of this comment for streaming.
+     *
+     * @return a read-only descriptor of the body, encoded in UTF-8
+     * @throws FileNotFoundException if the body is not stored externally or
+     *         its file is missing
+     */
+    ParcelFileDescriptor openExternalContent() throws FileNotFoundException {
+        if (mBodyName == null) {
+            throw new FileNotFoundException("Comment " + mId + " is stored inline");
+        }
+        return mBlobs.open(mBodyName);
     }
     
     /**
-     * Sets the content of the comment.
+     * Sets the content of the comment, which is then held inline.
      *
      * @param content the content
      */
     void setContent(String content) {
         mContent = content;
+        mBlobs = null;
+        mBodyName = null;
+        mEncoded = null;
+        mDictionary = null;
+        mDecoded = null;
     }
     
     /**
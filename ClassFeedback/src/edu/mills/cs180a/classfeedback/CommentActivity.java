@@ -1,5 +1,7 @@
 package edu.mills.cs180a.classfeedback;
 
+import java.io.File;
+
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.ActivityNotFoundException;
@@ -17,14 +19,31 @@ import android.widget.Toast;
 
 /**
  * An {@code Activity} that solicits a {@link Comment} about the specified {@link Person}.
- * The recipient of the comment is specified as an index into {@link Person#everyone}
+ * The recipient of the comment is specified as a position in the {@link Roster}
  * and is communicated via the key {@link #RECIPIENT} in the {@link android.intent.Intent}.
  *
  * <P>The user is given the choice of saving or canceling the comment.  If saved,
- * it is added to the database, and the result code {@link Activity#RESULT_OK} is
+ * it is queued to be written to the database in the background (see
+ * {@link CommentWriteQueue}), and the result code {@link Activity#RESULT_OK} is
  * provided to the parent activity.  Otherwise, the database is not modified, and
  * the result code {@link Activity#RESULT_CANCELED} is provided.
  *
+ * <P>The database is opened and the comment read in the background (see
+ * {@link CommentLoader}), usually having been prefetched by
+ * {@link MainActivity} when the recipient was touched.  If this process was
+ * restarted, the {@link Roster} is loaded in the background first.  Until the
+ * comment arrives, the field and the buttons that act on it are disabled.  If
+ * it cannot be loaded, the user is told so and this activity is finished with
+ * the result code {@link Activity#RESULT_CANCELED}.
+ *
+ * <P>Once the comment has been shown, the text being edited is autosaved as a
+ * draft (see {@link DraftAutosaver}) whenever the user pauses typing, at least
+ * every few seconds while they keep typing, and whenever this activity is
+ * paused.  Saving, deleting or canceling the comment discards the draft.  A
+ * draft that was not discarded is shown instead of the saved comment the next
+ * time this activity is started for the same recipient, even if the process
+ * was killed in between.
+ *
  * @author ellen.spertus@gmail.com (Ellen Spertus)
  */
 public class CommentActivity extends Activity {
@@ -32,34 +51,61 @@ public class CommentActivity extends Activity {
     public static final String RECIPIENT = "COMMENT_RECIPIENT";
     public static final String ACTION = "COMMENT_ACTION";
     public static final String CDS_FACTORY = "CDS_FACTORY";
+    /**
+     * The key of an optional {@code long} extra giving the quiet period, in
+     * milliseconds, after which changes are kept as a draft.
+     */
+    public static final String DRAFT_QUIET_MILLIS = "DRAFT_QUIET_MILLIS";
+    /**
+     * The key of an optional {@code String} extra giving the path of the
+     * directory in which drafts are kept, in place of that of
+     * {@link DraftStore#getInstance(android.content.Context)}.  This is intended
+     * for testing.
+     */
+    public static final String DRAFT_DIRECTORY = "DRAFT_DIRECTORY";
+    /**
+     * The key of an optional {@code long} extra giving the value of
+     * {@link System#nanoTime()} when the user tapped the recipient, from which
+     * the time until the comment is shown is measured.
+     */
+    public static final String TAP_NANOS = "TAP_NANOS";
+    private static final OperationStats TAP_TO_COMMENT_STATS =
+            OperationStats.create("CommentActivity.tapToComment");
     private int recipient;
+    private Roster roster;
     private CommentsDataSource cds;
+    private CommentLoader.Load load;
+    private long tapNanos;
     private EditText commentField;
+    private View[] editingViews;
+    private DraftAutosaver draftAutosaver;
+    private boolean destroyed;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_comment);
-
-        // Show a picture of the recipient.
         recipient = getIntent().getIntExtra(RECIPIENT, -1);
-        assert(recipient >= 0 && recipient < Person.everyone.length);
-        Person person = Person.everyone[recipient];
-        ImageView icon = (ImageView) findViewById(R.id.commentImageView);
-        icon.setImageResource(person.getImageId());
-
-        // Get a connection to the database.
-        CommentsDataSourceAbstractFactory factory =
-                (CommentsDataSourceAbstractFactory) getIntent().getSerializableExtra(CDS_FACTORY);
-        cds = factory.createCommentsDataSource(this);
-        cds.open();
-
-        // Set the text of the comment EditText to the value of the current comment, if any.
         commentField = (EditText) findViewById(R.id.commentEditText);
-        Comment comment = cds.getCommentForRecipient(person.getEmail());
-        if (comment != null && comment.getContent() != null) {
-            commentField.setText(comment.getContent());
-        }
+        editingViews = new View[] { commentField, findViewById(R.id.saveCommentButton),
+                findViewById(R.id.clearTextButton), findViewById(R.id.deleteCommentButton),
+                findViewById(R.id.mailCommentButton) };
+        setEditingEnabled(false);
+        // Only the first creation follows a tap.
+        tapNanos = savedInstanceState == null ? getIntent().getLongExtra(TAP_NANOS, 0) : 0;
+
+        // The roster is normally loaded by MainActivity before this is started,
+        // in which case this is called at once.  If this process was restarted,
+        // it is called once the roster has been loaded in the background.
+        roster = Roster.getInstance(this);
+        roster.whenLoaded(new Roster.OnLoadedListener() {
+            @Override
+            public void onRosterLoaded(Roster roster) {
+                if (!destroyed) {
+                    startLoading(roster.get(recipient));
+                }
+            }
+        });
 
         // Add listeners.
         Button saveButton = (Button) findViewById(R.id.saveCommentButton);
@@ -73,6 +119,9 @@ public class CommentActivity extends Activity {
         cancelButton.setOnClickListener(new OnClickListener(){
             @Override
             public void onClick(View view) {
+                if (draftAutosaver != null) {
+                    draftAutosaver.discard();
+                }
                 setResult(RESULT_CANCELED, new Intent().putExtra(RECIPIENT, recipient));
                 finish();
             }
@@ -96,21 +145,110 @@ public class CommentActivity extends Activity {
         mailButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View arg0) {
-                sendEmailTo(Person.everyone[recipient]);
+                sendEmailTo(roster.get(recipient));
                 createDeleteCommentDialog().show();
             }
         });
     }
 
+    // Shows a picture of the recipient and starts getting a connection to the
+    // database and the comment in the background.
+    private void startLoading(Person person) {
+        ImageView icon = (ImageView) findViewById(R.id.commentImageView);
+        ImageLoader.getInstance(this).load(person.getImageId(), icon,
+                getResources().getDimensionPixelSize(R.dimen.person_image_size));
+
+        // Changes are kept as a draft once the comment has been loaded.
+        String draftDirectory = getIntent().getStringExtra(DRAFT_DIRECTORY);
+        DraftStore drafts = draftDirectory == null ? DraftStore.getInstance(this)
+                : DraftStore.getInstance(new File(draftDirectory));
+        draftAutosaver = new DraftAutosaver(drafts, person.getEmail(), commentField,
+                getIntent().getLongExtra(DRAFT_QUIET_MILLIS, DraftAutosaver.DEFAULT_QUIET_MILLIS),
+                DraftAutosaver.DEFAULT_MAX_DELAY_MILLIS);
+
+        CommentsDataSourceAbstractFactory factory =
+                (CommentsDataSourceAbstractFactory) getIntent().getSerializableExtra(CDS_FACTORY);
+        load = CommentLoader.getInstance(this).load(factory, drafts, person.getEmail(),
+                new CommentLoader.Callback() {
+                    @Override
+                    public void onCommentLoaded(CommentsDataSource cds, String draft,
+                            String content) {
+                        showComment(cds, draft, content);
+                    }
+
+                    @Override
+                    public void onCommentLoadFailed(RuntimeException e) {
+                        Log.e(TAG, "Unable to load comment.", e);
+                        giveUp();
+                    }
+                });
+    }
+
+    // Sets the text of the comment EditText to the draft, if any, or else to
+    // the content of the current comment, if any.
+    private void showComment(CommentsDataSource cds, String draft, String content) {
+        this.cds = cds;
+        load = null;
+        if (draft != null) {
+            commentField.setText(draft);
+        } else if (content != null) {
+            commentField.setText(content);
+        }
+        commentField.addTextChangedListener(draftAutosaver);
+        setEditingEnabled(true);
+
+        if (tapNanos != 0) {
+            TAP_TO_COMMENT_STATS.record(tapNanos, 1);
+            Tracer.trace(Log.DEBUG, Tracer.SHOW_COMMENT, roster.get(recipient).getEmail(),
+                    tapNanos);
+        }
+    }
+
+    // Tells the user that the comment could not be loaded, and returns to the
+    // parent activity as if the comment had been canceled.  Any draft is kept.
+    private void giveUp() {
+        load = null;
+        Toast.makeText(this, getString(R.string.comment_load_failed_toast,
+                roster.get(recipient).toString()), Toast.LENGTH_LONG).show();
+        setResult(RESULT_CANCELED, new Intent().putExtra(RECIPIENT, recipient));
+        finish();
+    }
+
+    private void setEditingEnabled(boolean enabled) {
+        for (View view : editingViews) {
+            view.setEnabled(enabled);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        destroyed = true;
+        // Close the data source, whether or not it is still being loaded.
+        // Comments saved or deleted are written before it is closed.
+        if (load != null) {
+            load.cancel();
+        }
+        if (cds != null) {
+            CommentLoader.getInstance(this).close(cds);
+            cds = null;
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    protected void onPause() {
+        // Keep any unsaved changes in case this process is killed.
+        if (draftAutosaver != null) {
+            draftAutosaver.flush();
+        }
+        super.onPause();
+    }
 
     private void saveComment() {
-        Log.d(TAG, "saveComment()");
-        Log.d(TAG, "recipient = " + recipient);
-        String recipientEmail = Person.everyone[recipient].getEmail();
-        Log.d(TAG, "recipient email = " + recipientEmail);
-        Log.d(TAG, "commentField = " + commentField);
-        Log.d(TAG, "commentField text = " + commentField.getText());
-        cds.createComment(Person.everyone[recipient].getEmail(), commentField.getText().toString());
+        String recipientEmail = roster.get(recipient).getEmail();
+        Tracer.trace(Log.DEBUG, Tracer.SAVE_COMMENT, recipientEmail);
+        cds.getWriteQueue().save(recipientEmail, commentField.getText().toString());
+        draftAutosaver.discard();
         Intent intent = new Intent()
                 .putExtra(RECIPIENT, recipient)
                 .putExtra(ACTION, R.string.added_text);
@@ -119,7 +257,8 @@ public class CommentActivity extends Activity {
     }
 
     private void deleteComment() {
-        cds.deleteCommentForRecipient(Person.everyone[recipient].getEmail());
+        cds.getWriteQueue().delete(roster.get(recipient).getEmail());
+        draftAutosaver.discard();
         Intent intent = new Intent()
                 .putExtra(RECIPIENT, recipient)
                 .putExtra(ACTION, R.string.deleted_text);
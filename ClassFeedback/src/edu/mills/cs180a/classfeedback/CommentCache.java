@@ -0,0 +1,155 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used cache of each recipient's {@link Comment},
+ * including the fact that a recipient has no comment.  Entries may optionally
+ * expire after a fixed time to live.
+ *
+ * <P>To keep a slow reader from caching a value that a concurrent write has
+ * already replaced, every invalidation advances a generation number.  Readers
+ * obtain the generation with {@link #getGeneration()} before reading the
+ * database and pass it to {@link #put(String, Comment, long)}, which ignores
+ * the value if an invalidation happened in between.
+ *
+ * <P>Cached {@code Comment}s are shared and must not be modified.
+ */
+class CommentCache {
+    /**
+     * The default maximum number of recipients whose comments are cached.
+     */
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    /**
+     * The time to live indicating that entries never expire.
+     */
+    static final long NO_TTL = 0;
+
+    private final int mMaxSize;
+    private final long mTtlNanos;
+    private final LinkedHashMap<String, Entry> mEntries;
+    private long mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    /**
+     * A cached comment, which is {@code null} if the recipient has no comment.
+     */
+    static class Entry {
+        final Comment comment;
+        final long expiresAtNanos;
+
+        Entry(Comment comment, long expiresAtNanos) {
+            this.comment = comment;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param maxSize the maximum number of recipients to cache
+     * @param ttlMillis how long an entry remains valid, or {@link #NO_TTL}
+     */
+    CommentCache(final int maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        mTtlNanos = ttlMillis * 1000000L;
+        // An access-ordered map whose eldest entry is the least recently used.
+        mEntries = new LinkedHashMap<String, Entry>(maxSize, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > mMaxSize) {
+                    mEvictionCount++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks up the recipient's comment.
+     *
+     * @param recipient the email address of the recipient
+     * @return the entry for the recipient, or {@code null} on a miss
+     */
+    synchronized Entry get(String recipient) {
+        Entry entry = mEntries.get(recipient);
+        if (entry != null && mTtlNanos != NO_TTL && System.nanoTime() - entry.expiresAtNanos > 0) {
+            mEntries.remove(recipient);
+            entry = null;
+        }
+        if (entry == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the current generation, which should be obtained before reading
+     * a value to be passed to {@link #put(String, Comment, long)}.
+     *
+     * @return the current generation
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the recipient's comment, unless the cache has been invalidated
+     * since the specified generation.
+     *
+     * @param recipient the email address of the recipient
+     * @param comment the recipient's comment, or {@code null} if there is none
+     * @param generation the generation obtained before the comment was read
+     */
+    synchronized void put(String recipient, Comment comment, long generation) {
+        if (generation == mGeneration) {
+            mEntries.put(recipient, new Entry(comment, System.nanoTime() + mTtlNanos));
+        }
+    }
+
+    /**
+     * Removes the recipient's comment from the cache.
+     *
+     * @param recipient the email address of the recipient
+     */
+    synchronized void invalidate(String recipient) {
+        mGeneration++;
+        mEntries.remove(recipient);
+    }
+
+    /**
+     * Removes every comment from the cache.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+}
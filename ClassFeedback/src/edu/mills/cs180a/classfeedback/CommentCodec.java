@@ -0,0 +1,241 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Compresses the content of comments with DEFLATE, using a preset dictionary
+ * of words common in earlier comments, and decompresses it.  Comments are
+ * mostly too short for DEFLATE to find repetition within them, so the
+ * dictionary supplies it.
+ *
+ * <P>Dictionaries are stored in {@link MySQLiteOpenHelper#TABLE_DICTIONARIES}
+ * and cached here once read.  Since they are never changed, a newly trained
+ * dictionary is only used for content compressed after it.
+ */
+class CommentCodec {
+    /**
+     * The id of no dictionary, for content compressed without one.
+     */
+    static final long NO_DICTIONARY = -1;
+
+    /**
+     * The maximum size, in bytes, of a trained dictionary.
+     */
+    static final int DICTIONARY_SIZE = 16 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 4096;
+    // Words shorter than this save too little to be worth a place.
+    private static final int MIN_WORD_LENGTH = 3;
+    private static final String[] DICTIONARY_PROJECTION = { MySQLiteOpenHelper.COLUMN_DICTIONARY };
+    private static final String ID_SELECTION = MySQLiteOpenHelper.COLUMN_ID + " = ?";
+    private static final String SELECT_LATEST_DICTIONARY_ID = "SELECT coalesce(max("
+            + MySQLiteOpenHelper.COLUMN_ID + "), " + NO_DICTIONARY + ") FROM "
+            + MySQLiteOpenHelper.TABLE_DICTIONARIES;
+
+    private final SQLiteDatabase mDatabase;
+    // These are guarded by this.
+    private final Map<Long, byte[]> mDictionaries = new HashMap<Long, byte[]>();
+    private Long mLatestId;
+
+    /**
+     * Constructs a codec reading dictionaries through the specified connection.
+     *
+     * @param database the writable connection
+     */
+    CommentCodec(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Gets the id of the most recently added dictionary.
+     *
+     * @return the id, or {@link #NO_DICTIONARY} if none has been added
+     */
+    synchronized long getLatestDictionaryId() {
+        if (mLatestId == null) {
+            SQLiteStatement statement = mDatabase.compileStatement(SELECT_LATEST_DICTIONARY_ID);
+            try {
+                mLatestId = statement.simpleQueryForLong();
+            } finally {
+                statement.close();
+            }
+        }
+        return mLatestId;
+    }
+
+    /**
+     * Gets a dictionary, reading it from the database the first time.
+     *
+     * @param id the id of the dictionary, or {@link #NO_DICTIONARY}
+     * @return the dictionary, or {@code null} for {@link #NO_DICTIONARY}
+     * @throws SQLException if there is no such dictionary
+     */
+    synchronized byte[] getDictionary(long id) {
+        if (id == NO_DICTIONARY) {
+            return null;
+        }
+        byte[] dictionary = mDictionaries.get(id);
+        if (dictionary == null) {
+            Cursor cursor = mDatabase.query(MySQLiteOpenHelper.TABLE_DICTIONARIES,
+                    DICTIONARY_PROJECTION, ID_SELECTION, new String[] { Long.toString(id) },
+                    null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    throw new SQLException("No dictionary " + id);
+                }
+                dictionary = cursor.getBlob(0);
+            } finally {
+                cursor.close();
+            }
+            mDictionaries.put(id, dictionary);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Adds a dictionary, which becomes the latest.
+     *
+     * @param dictionary the dictionary
+     * @return its id
+     * @throws SQLException if the dictionary could not be added
+     */
+    synchronized long addDictionary(byte[] dictionary) {
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_DICTIONARY, dictionary);
+        long id = mDatabase.insertOrThrow(MySQLiteOpenHelper.TABLE_DICTIONARIES, null, values);
+        mDictionaries.put(id, dictionary);
+        mLatestId = id;
+        return id;
+    }
+
+    /**
+     * Compresses text.
+     *
+     * @param text the text
+     * @param dictionary the preset dictionary, or {@code null}
+     * @return the text's UTF-8 encoding, compressed
+     */
+    static byte[] deflate(String text, byte[] dictionary) {
+        byte[] input = text.getBytes(UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses text compressed by {@link #deflate(String, byte[])}.
+     *
+     * @param encoded the compressed text
+     * @param dictionary the dictionary with which it was compressed, or {@code null}
+     * @return the text
+     * @throws IllegalStateException if the data is corrupt or needs a
+     *         different dictionary
+     */
+    static String inflate(byte[] encoded, byte[] dictionary) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length * 3);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsDictionary() || inflater.needsInput()) {
+                        throw new IllegalStateException("Unable to decompress comment");
+                    }
+                }
+                out.write(buffer, 0, length);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed comment", e);
+        } catch (IllegalArgumentException e) {
+            // This is thrown if the dictionary does not match.
+            throw new IllegalStateException("Wrong dictionary for compressed comment", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Builds a dictionary from the words that recur most across comments,
+     * weighted by their length.  DEFLATE refers most cheaply to the end of a
+     * dictionary, so the most valuable words are put last.
+     *
+     * @param samples the content of comments
+     * @return the dictionary, of at most {@link #DICTIONARY_SIZE} bytes,
+     *         which is empty if no word recurs
+     */
+    static byte[] train(List<String> samples) {
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        for (String sample : samples) {
+            for (String word : sample.split("\\s+")) {
+                if (word.length() >= MIN_WORD_LENGTH) {
+                    Integer count = counts.get(word);
+                    counts.put(word, count == null ? 1 : count + 1);
+                }
+            }
+        }
+        List<String> words = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                words.add(entry.getKey());
+            }
+        }
+        // Sort by the number of characters that the word covers, most first.
+        Collections.sort(words, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long scoreA = (long) counts.get(a) * a.length();
+                long scoreB = (long) counts.get(b) * b.length();
+                return scoreA > scoreB ? -1 : scoreA < scoreB ? 1 : a.compareTo(b);
+            }
+        });
+        List<byte[]> chosen = new ArrayList<byte[]>();
+        int size = 0;
+        for (String word : words) {
+            byte[] bytes = (word + " ").getBytes(UTF_8);
+            if (size + bytes.length <= DICTIONARY_SIZE) {
+                chosen.add(bytes);
+                size += bytes.length;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            out.write(chosen.get(i), 0, chosen.get(i).length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,217 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Removes old versions of comments from
+ * {@link MySQLiteOpenHelper#TABLE_COMMENT_VERSIONS} on a background thread.
+ * Each recipient's latest version is always kept, along with as many of the
+ * versions before it as the policy allows: at most a maximum number of
+ * versions in all, none older than a maximum age, if one is set.  Once a
+ * deletion is older than the maximum age, the recipient's whole history is
+ * removed.  Compaction is scheduled shortly after each burst of commits.
+ * Each compaction then sweeps the {@link BlobStore} of bodies that are no
+ * longer referenced.
+ */
+class CommentCompactor {
+    private static final String TAG = "CommentCompactor";
+
+    /**
+     * The default maximum number of versions kept for each recipient.
+     */
+    static final int DEFAULT_MAX_VERSIONS = 10;
+
+    /**
+     * The maximum age meaning that versions are kept regardless of age.
+     */
+    static final long NO_MAX_AGE = 0;
+
+    /**
+     * The default delay, in milliseconds, between a commit and compaction.
+     */
+    static final long DEFAULT_DELAY_MILLIS = 30000;
+
+    private static final String VERSIONS = MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS;
+    private static final String ID = MySQLiteOpenHelper.COLUMN_ID;
+    private static final String RECIPIENT_ID = MySQLiteOpenHelper.COLUMN_RECIPIENT_ID;
+    private static final String VERSION = MySQLiteOpenHelper.COLUMN_VERSION;
+    private static final String CREATED = MySQLiteOpenHelper.COLUMN_CREATED;
+    private static final String SELECT_LATEST_VERSION_IDS = "SELECT "
+            + MySQLiteOpenHelper.COLUMN_VERSION_ID + " FROM "
+            + MySQLiteOpenHelper.TABLE_LATEST_VERSIONS;
+    // Selects versions other than the latest that are too many versions
+    // behind it (the first argument) or were saved before a time (the second).
+    private static final String OLD_VERSIONS_SELECTION = ID + " NOT IN ("
+            + SELECT_LATEST_VERSION_IDS + ") AND (" + VERSION + " <= (SELECT max("
+            + VERSION + ") FROM " + VERSIONS + " AS latest WHERE latest." + RECIPIENT_ID
+            + " = " + VERSIONS + "." + RECIPIENT_ID + ") - ? OR " + CREATED + " < ?)";
+    // Selects every version of recipients whose latest version is a deletion
+    // saved before a time (the argument).
+    private static final String DELETED_HISTORY_SELECTION = RECIPIENT_ID + " IN (SELECT "
+            + RECIPIENT_ID + " FROM " + VERSIONS + " WHERE " + ID + " IN ("
+            + SELECT_LATEST_VERSION_IDS + ") AND " + MySQLiteOpenHelper.COLUMN_CONTENT
+            + " IS NULL AND " + CREATED + " < ?)";
+    private static final String BODY_FILE = MySQLiteOpenHelper.COLUMN_BODY_FILE;
+    private static final String SELECT_BODY_FILES = "SELECT " + BODY_FILE + " FROM "
+            + VERSIONS + " WHERE " + BODY_FILE + " IS NOT NULL";
+
+    private final SQLiteDatabase mDatabase;
+    private final BlobStore mBlobs;
+    private final long mDelayMillis;
+    private final Runnable mOnCompacted;
+    private final ScheduledExecutorService mExecutor;
+    private final Runnable mCompactTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommentCompactor.this) {
+                mScheduled = false;
+            }
+            try {
+                compact();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Compaction failed.", e);
+            }
+        }
+    };
+    // These are guarded by this.
+    private boolean mScheduled;
+    private int mMaxVersions = DEFAULT_MAX_VERSIONS;
+    private long mMaxAgeMillis = NO_MAX_AGE;
+
+    /**
+     * Starts the background thread.
+     *
+     * @param database the writable connection
+     * @param blobs the store of externally stored bodies, or {@code null}
+     * @param delayMillis the delay between a commit and compaction
+     * @param onCompacted run on the compacting thread after versions have
+     *        been removed, so that caches and listeners can be told
+     */
+    CommentCompactor(SQLiteDatabase database, BlobStore blobs, long delayMillis,
+            Runnable onCompacted) {
+        mDatabase = database;
+        mBlobs = blobs;
+        mDelayMillis = delayMillis;
+        mOnCompacted = onCompacted;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory(TAG));
+    }
+
+    /**
+     * Sets which versions are kept by later compactions.
+     *
+     * @param maxVersions the maximum number of versions kept for each
+     *        recipient, including the latest
+     * @param maxAgeMillis the age, in milliseconds, beyond which versions
+     *        other than the latest are removed, or {@link #NO_MAX_AGE}
+     * @throws IllegalArgumentException if {@code maxVersions} is not positive
+     *         or {@code maxAgeMillis} is negative
+     */
+    synchronized void setPolicy(int maxVersions, long maxAgeMillis) {
+        checkPolicy(maxVersions, maxAgeMillis);
+        mMaxVersions = maxVersions;
+        mMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Checks the arguments of {@link #setPolicy(int, long)}.
+     *
+     * @throws IllegalArgumentException if {@code maxVersions} is not positive
+     *         or {@code maxAgeMillis} is negative
+     */
+    static void checkPolicy(int maxVersions, long maxAgeMillis) {
+        if (maxVersions <= 0) {
+            throw new IllegalArgumentException("maxVersions must be positive: " + maxVersions);
+        }
+        if (maxAgeMillis < 0) {
+            throw new IllegalArgumentException("maxAgeMillis must not be negative: "
+                    + maxAgeMillis);
+        }
+    }
+
+    /**
+     * Records that a transaction was committed, scheduling compaction if it
+     * is not already scheduled.
+     */
+    synchronized void onCommit() {
+        if (!mScheduled && !mExecutor.isShutdown()) {
+            mScheduled = true;
+            mExecutor.schedule(mCompactTask, mDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes the versions that the policy does not keep, on the calling
+     * thread, and then any bodies that no version refers to.
+     *
+     * @return the number of versions removed
+     */
+    int compact() {
+        int maxVersions;
+        long cutoff;
+        synchronized (this) {
+            maxVersions = mMaxVersions;
+            // No version was saved before the epoch.
+            cutoff = mMaxAgeMillis == NO_MAX_AGE ? 0
+                    : System.currentTimeMillis() - mMaxAgeMillis;
+        }
+        String cutoffArg = Long.toString(cutoff);
+        int count;
+        mDatabase.beginTransaction();
+        try {
+            count = mDatabase.delete(VERSIONS, OLD_VERSIONS_SELECTION,
+                    new String[] { Integer.toString(maxVersions), cutoffArg });
+            count += mDatabase.delete(VERSIONS, DELETED_HISTORY_SELECTION,
+                    new String[] { cutoffArg });
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        if (count > 0) {
+            Log.i(TAG, "Removed " + count + " old versions of comments.");
+            mOnCompacted.run();
+        }
+        if (mBlobs != null) {
+            int removed = mBlobs.sweep(getBodyFiles());
+            if (removed > 0) {
+                Log.i(TAG, "Removed " + removed + " unreferenced comment bodies.");
+            }
+        }
+        return count;
+    }
+
+    // Returns the names of the bodies referenced by committed versions.  A
+    // body written after this is read is spared by the sweep's grace period.
+    private Set<String> getBodyFiles() {
+        Set<String> names = new HashSet<String>();
+        Cursor cursor = mDatabase.rawQuery(SELECT_BODY_FILES, null);
+        try {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return names;
+    }
+
+    /**
+     * Stops the background thread.  Any scheduled compaction is abandoned
+     * until the next time the data source is opened and written.
+     */
+    void close() {
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(mDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,11 +1,26 @@
 package edu.mills.cs180a.classfeedback;
 
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 /**
@@ -25,52 +40,502 @@ public class CommentContentProvider extends ContentProvider {
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY
             + "/" + BASE_PATH);
 
+    /**
+     * The query parameter of {@link #CONTENT_URI} giving the maximum number of
+     * comments to return.  If present, comments are returned in increasing
+     * order of id.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /**
+     * The query parameter of {@link #CONTENT_URI} requesting only comments whose
+     * ids are greater than its value.  To page through all comments, include
+     * the {@code _id} column in the projection, and pass the id of the last
+     * comment on each page to request the next one.
+     */
+    public static final String QUERY_PARAMETER_AFTER = "after";
+
+    /**
+     * The URI for full-text searches of comments' content.  The query is given
+     * in {@link #QUERY_PARAMETER_QUERY}, and a page of results may be requested
+     * with {@link #QUERY_PARAMETER_LIMIT} and {@link #QUERY_PARAMETER_OFFSET}.
+     * Results are ordered by {@link MySQLiteOpenHelper#COLUMN_RANK}, most
+     * relevant first.
+     */
+    public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+
+    /**
+     * The query parameter of {@link #SEARCH_URI} giving the full-text query.
+     */
+    public static final String QUERY_PARAMETER_QUERY = "q";
+
+    /**
+     * The query parameter of {@link #SEARCH_URI} giving the number of matching
+     * comments to skip.
+     */
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+
+    /**
+     * The URI for looking up the comments for many recipients with a single
+     * query.  Each recipient's email address is given in a separate
+     * {@link #QUERY_PARAMETER_RECIPIENT} parameter.  Recipients without
+     * comments have no rows, so the projection should include
+     * {@link MySQLiteOpenHelper#COLUMN_RECIPIENT}.
+     */
+    public static final Uri BATCH_URI = Uri.withAppendedPath(CONTENT_URI, "batch");
+
+    /**
+     * The query parameter of {@link #BATCH_URI} giving a recipient's email
+     * address.  It may be repeated.
+     */
+    public static final String QUERY_PARAMETER_RECIPIENT = "recipient";
+
+    /**
+     * The URI for the kept versions of a recipient's comment, latest first.
+     * Append the recipient's email address to this.  A version recording
+     * that the comment was deleted has {@code null} content.  Besides the
+     * usual columns, the projection may include
+     * {@link MySQLiteOpenHelper#COLUMN_VERSION} and
+     * {@link MySQLiteOpenHelper#COLUMN_CREATED}.  The cursor is notified of
+     * changes to the recipient's comment.
+     */
+    public static final Uri HISTORY_URI = Uri.withAppendedPath(CONTENT_URI, "history");
+
+    /**
+     * The URI for streaming the whole content of a recipient's current
+     * comment, encoded in UTF-8.  Append the recipient's email address to
+     * this, and open it for reading with
+     * {@link ContentResolver#openInputStream(Uri)}.  Content longer than 64K
+     * characters is stored in its own file, and queries return only its first
+     * 1024 characters, so it must be read through this.  This requires API 9.
+     */
+    public static final Uri BODY_URI = Uri.withAppendedPath(CONTENT_URI, "body");
+
+    /**
+     * The MIME type of the stream at {@link #BODY_URI}.
+     */
+    public static final String BODY_MIME_TYPE = "text/plain";
+
+    /**
+     * The URI for streaming every current comment out of, or into, this
+     * provider, as newline-delimited JSON with one object per comment, such
+     * as {@code {"recipient":"ellen.spertus@gmail.com","content":"Great job!"}}.
+     * Open it for reading, for example with
+     * {@link ContentResolver#openInputStream(Uri)}, to export comments, or
+     * for writing, with {@link ContentResolver#openOutputStream(Uri)}, to
+     * import them.  Imported comments are saved in batches once written, and
+     * may not all be visible when the stream is closed.  Neither side holds
+     * more than a few comments in memory.  This requires API 9.
+     */
+    public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, "export");
+
+    /**
+     * The MIME type of the stream at {@link #EXPORT_URI}.
+     */
+    public static final String EXPORT_MIME_TYPE = CommentStreamer.MIME_TYPE;
+
+    /**
+     * The URI for statistics about the calls made to this provider and its
+     * {@link CommentsDataSource} since the process started.  A query returns a
+     * row for each operation, with the columns {@code operation}, {@code count},
+     * {@code errors}, {@code rows}, {@code total_nanos}, {@code p50_nanos},
+     * {@code p99_nanos} and {@code max_nanos}.  For example:
+     * <PRE>adb shell content query --uri content://edu.mills.cs180a.classfeedback/comments/_stats</PRE>
+     */
+    public static final Uri STATS_URI = Uri.withAppendedPath(CONTENT_URI, "_stats");
+
+    private static final String[] STATS_COLUMNS = {
+        "operation", "count", "errors", "rows", "total_nanos", "p50_nanos", "p99_nanos",
+        "max_nanos"
+    };
+    private static final OperationStats QUERY_STATS =
+            OperationStats.create("CommentContentProvider.query");
+    private static final OperationStats INSERT_STATS =
+            OperationStats.create("CommentContentProvider.insert");
+    private static final OperationStats BULK_INSERT_STATS =
+            OperationStats.create("CommentContentProvider.bulkInsert");
+    private static final OperationStats APPLY_BATCH_STATS =
+            OperationStats.create("CommentContentProvider.applyBatch");
+    private static final OperationStats UPDATE_STATS =
+            OperationStats.create("CommentContentProvider.update");
+    private static final OperationStats DELETE_STATS =
+            OperationStats.create("CommentContentProvider.delete");
+
     // Set up URI matching.
     private static final int COMMENTS = 1;
     private static final int COMMENTS_EMAIL = 2;
+    private static final int COMMENTS_SEARCH = 3;
+    private static final int COMMENTS_STATS = 4;
+    private static final int COMMENTS_BATCH = 5;
+    private static final int COMMENTS_HISTORY = 6;
+    private static final int COMMENTS_EXPORT = 7;
+    private static final int COMMENTS_BODY = 8;
+    private static final String[] DEFAULT_PROJECTION = {
+        MySQLiteOpenHelper.COLUMN_ID,
+        MySQLiteOpenHelper.COLUMN_RECIPIENT,
+        MySQLiteOpenHelper.COLUMN_CONTENT
+    };
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
         // Get all comments.
         sURIMatcher.addURI(AUTHORITY, BASE_PATH, COMMENTS);
+        // Search the content of comments.  This, the statistics, batch and
+        // export URIs must be added before the wildcard below, which would
+        // otherwise match them.
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/search", COMMENTS_SEARCH);
+        // Get statistics about calls to this provider.
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/_stats", COMMENTS_STATS);
+        // Get the comments for many email addresses.
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/batch", COMMENTS_BATCH);
+        // Stream comments out or in.
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/export", COMMENTS_EXPORT);
+        // Stream the content of the comment for a specific email address.
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/body/*", COMMENTS_BODY);
+        // Get the history of the comment for a specific email address.
+        sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/history/*", COMMENTS_HISTORY);
         // Get all comments for a specific email address.
         sURIMatcher.addURI(AUTHORITY, BASE_PATH + "/*", COMMENTS_EMAIL);
     }
 
+    // The single data source shared by all binder threads for the lifetime of
+    // this provider.  It is opened and warmed up by a background thread started
+    // in onCreate(), or else by the first request, and released by shutdown().
+    private volatile CommentsDataSource mDataSource;
+    private CommentsDataSourceAbstractFactory mFactory = new CommentsDataSourceFactory();
+    private final CommentStreamer mStreamer = new CommentStreamer();
+
+    /**
+     * Starts opening and warming up the data source on a background thread,
+     * so that the first request does not pay for it.  A request that arrives
+     * before this is done waits for it rather than repeating it.
+     */
     @Override
     public boolean onCreate() {
-        return false;
+        new BackgroundThreadFactory(TAG).newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getDataSource();
+                } catch (RuntimeException e) {
+                    // The first request will try again and report the error.
+                    Log.e(TAG, "Unable to warm up the data source.", e);
+                }
+            }
+        }).start();
+        return true;
+    }
+
+    /**
+     * Sets the factory used to construct this provider's {@link CommentsDataSource}.
+     * This is intended for testing, and must be called before the provider is
+     * attached to its context, which opens a data source from the factory.
+     *
+     * @param factory the factory for the data source
+     * @throws IllegalStateException if the provider has already been attached
+     */
+    public synchronized void setDataSourceFactory(CommentsDataSourceAbstractFactory factory) {
+        if (getContext() != null) {
+            throw new IllegalStateException(
+                    "The data source factory must be set before the provider is attached.");
+        }
+        mFactory = factory;
+    }
+
+    // Returns the shared data source, creating, opening and warming it up on
+    // first use.  This uses double-checked locking on the volatile field, so
+    // only the first caller does the work, and any others wait for it.
+    private CommentsDataSource getDataSource() {
+        CommentsDataSource cds = mDataSource;
+        if (cds == null) {
+            synchronized (this) {
+                cds = mDataSource;
+                if (cds == null) {
+                    cds = mFactory.createCommentsDataSource(getContext());
+                    cds.open();
+                    try {
+                        cds.warmUp();
+                    } catch (RuntimeException e) {
+                        cds.close();
+                        throw e;
+                    }
+                    mDataSource = cds;
+                }
+            }
+        }
+        return cds;
+    }
+
+    /**
+     * Closes the shared {@link CommentsDataSource}, if it was ever opened.
+     * A subsequent request will reopen it.
+     */
+    @Override
+    public synchronized void shutdown() {
+        if (mDataSource != null) {
+            mDataSource.close();
+            mDataSource = null;
+        }
+        super.shutdown();
     }
 
     @Override
-    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
-            String sortOrder) {
-        Log.d(TAG, "In CommentContentProvider.query()");
-        Log.d(TAG, "In CommentContentProvider, getContext().toString(): " + getContext().toString());
-        CommentsDataSource cds = new CommentsDataSource(getContext());
-        cds.open();
+    public Cursor query(final Uri uri, final String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        if (sURIMatcher.match(uri) == COMMENTS_STATS) {
+            return getStatsCursor();
+        }
+        return QUERY_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                Cursor cursor = queryComments(uri, projection);
+                Tracer.trace(Log.DEBUG, Tracer.PROVIDER_QUERY, null, getStartNanos());
+                return cursor;
+            }
+        });
+    }
+
+    private Cursor queryComments(Uri uri, String[] projection) {
+        CommentsDataSource cds = getDataSource();
         Cursor cursor = null;
+        Uri notificationUri = uri;
         switch (sURIMatcher.match(uri)) {
             case COMMENTS:
-                Log.d(TAG, "In CommentContentProvider.query(), uri is COMMENTS");
-                cursor = cds.getCursorForAllComments(projection);
+                String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+                String after = uri.getQueryParameter(QUERY_PARAMETER_AFTER);
+                if (limit == null && after == null) {
+                    cursor = cds.getCursorForAllComments(projection);
+                } else {
+                    cursor = cds.getCursorForCommentsPage(
+                            after == null ? CommentsDataSource.FIRST_PAGE : parseLong(uri, after),
+                            limit == null ? Integer.MAX_VALUE : parseInt(uri, limit),
+                            projection);
+                }
                 break;
             case COMMENTS_EMAIL:
-                Log.d(TAG, "In CommentContentProvider.query(), uri is COMMENTS_EMAIL");
-                cursor = cds.getCursorForCommentForRecipient(uri.getLastPathSegment(), projection);
+                // This is answered from the data source's cache when only the
+                // columns a Comment holds are requested.
+                String email = uri.getLastPathSegment();
+                if (isCommentProjection(projection)) {
+                    cursor = toCursor(cds.getCommentForRecipient(email), projection);
+                } else {
+                    cursor = cds.getCursorForCommentForRecipient(email, projection);
+                }
+                break;
+            case COMMENTS_BATCH:
+                List<String> recipients = uri.getQueryParameters(QUERY_PARAMETER_RECIPIENT);
+                cursor = cds.getCursorForCommentsForRecipients(
+                        recipients.toArray(new String[recipients.size()]), projection);
+                break;
+            case COMMENTS_HISTORY:
+                String recipient = uri.getLastPathSegment();
+                cursor = cds.getCursorForCommentHistory(recipient, projection);
+                // Changes are only announced for the recipient's comment.
+                notificationUri = Uri.withAppendedPath(CONTENT_URI, recipient);
+                break;
+            case COMMENTS_SEARCH:
+                String query = uri.getQueryParameter(QUERY_PARAMETER_QUERY);
+                if (query == null) {
+                    throw new IllegalArgumentException("No query given for " + uri);
+                }
+                String searchLimit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+                String offset = uri.getQueryParameter(QUERY_PARAMETER_OFFSET);
+                cursor = cds.searchComments(query,
+                        searchLimit == null ? Integer.MAX_VALUE : parseInt(uri, searchLimit),
+                        offset == null ? 0 : parseInt(uri, offset),
+                        projection);
                 break;
             default:
-                Log.d(TAG, "In CommentContentProvider.query(), uri is not matched: " + uri);
                 throw new IllegalArgumentException("Illegal uri: " + uri);
         }
         // Notify anyone listening on the URI.
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
+
+        return cursor;
+    }
 
+    private static Cursor getStatsCursor() {
+        MatrixCursor cursor = new MatrixCursor(STATS_COLUMNS);
+        for (OperationStats stats : OperationStats.getAll()) {
+            cursor.addRow(new Object[] {
+                stats.getName(),
+                stats.getCount(),
+                stats.getErrorCount(),
+                stats.getRowCount(),
+                stats.getTotalNanos(),
+                stats.getPercentileNanos(50),
+                stats.getPercentileNanos(99),
+                stats.getMaxNanos()
+            });
+        }
         return cursor;
     }
 
+    /**
+     * Opens a pipe for streaming comments from or to {@link #EXPORT_URI},
+     * with the other end served on a background thread, or opens the content
+     * of a comment at {@link #BODY_URI} for reading.
+     *
+     * @param uri {@link #EXPORT_URI} or a {@link #BODY_URI} for a recipient
+     * @param mode "r" to export comments or read content, or "w" to import
+     *        comments
+     * @return the caller's end of the pipe, or a descriptor of the content
+     * @throws FileNotFoundException if the URI is not supported, the mode is
+     *         not supported, the recipient has no comment, or the pipe could
+     *         not be created
+     */
     @Override
-    public int delete(Uri arg0, String arg1, String[] arg2) {
-        throw new UnsupportedOperationException("delete not supported");
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        int match = sURIMatcher.match(uri);
+        if (match != COMMENTS_EXPORT && match != COMMENTS_BODY) {
+            throw new FileNotFoundException("Illegal uri: " + uri);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
+            throw new FileNotFoundException("Streaming comments requires API 9");
+        }
+        if (match == COMMENTS_BODY) {
+            if (!"r".equals(mode)) {
+                throw new FileNotFoundException("Unsupported mode " + mode + " for uri: " + uri);
+            }
+            return openBody(uri.getLastPathSegment());
+        }
+        boolean export;
+        if ("r".equals(mode)) {
+            export = true;
+        } else if ("w".equals(mode) || "wt".equals(mode) || "wa".equals(mode)) {
+            export = false;
+        } else {
+            throw new FileNotFoundException("Unsupported mode " + mode + " for uri: " + uri);
+        }
+        ParcelFileDescriptor[] pipe = createPipe();
+        // The caller gets the end it asked for, and this serves the other.
+        if (export) {
+            mStreamer.exportComments(getDataSource(), pipe[1]);
+            return pipe[0];
+        } else {
+            mStreamer.importComments(getDataSource(), pipe[0]);
+            return pipe[1];
+        }
+    }
+
+    // A body stored in its own file is opened directly.  Content stored inline
+    // is already in memory, and is written to a pipe.
+    private ParcelFileDescriptor openBody(String recipient) throws FileNotFoundException {
+        Comment comment = getDataSource().getCommentForRecipient(recipient);
+        if (comment == null) {
+            throw new FileNotFoundException("No comment for " + recipient);
+        }
+        if (comment.isContentExternal()) {
+            return comment.openExternalContent();
+        }
+        ParcelFileDescriptor[] pipe = createPipe();
+        mStreamer.writeContent(comment.getContentPreview(), pipe[1]);
+        return pipe[0];
+    }
+
+    private static ParcelFileDescriptor[] createPipe() throws FileNotFoundException {
+        try {
+            return ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create pipe: " + e.getMessage());
+        }
+    }
+
+    // This is only called on API 11 and higher.  Opening a typed stream is
+    // handled by the default openTypedAssetFile(), which checks getType().
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        String type;
+        switch (sURIMatcher.match(uri)) {
+            case COMMENTS_EXPORT:
+                type = EXPORT_MIME_TYPE;
+                break;
+            case COMMENTS_BODY:
+                type = BODY_MIME_TYPE;
+                break;
+            default:
+                return null;
+        }
+        return ClipDescription.compareMimeTypes(type, mimeTypeFilter)
+                ? new String[] { type } : null;
+    }
+
+    /**
+     * Writes the most recent {@link Tracer} events.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        Tracer.dump(writer);
+    }
+
+    // Returns whether every column in the projection is one of those of
+    // DEFAULT_PROJECTION, which toCursor() can fill from a Comment.
+    private static boolean isCommentProjection(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (!Arrays.asList(DEFAULT_PROJECTION).contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns a cursor with the specified columns of the comment, which has no
+    // rows if the comment is null.  The projection must satisfy
+    // isCommentProjection().  Like the other queries, this gives only
+    // the preview of a body stored in its own file.
+    private static Cursor toCursor(Comment comment, String[] projection) {
+        if (projection == null) {
+            projection = DEFAULT_PROJECTION;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (comment != null) {
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                if (MySQLiteOpenHelper.COLUMN_ID.equals(projection[i])) {
+                    row[i] = comment.getId();
+                } else if (MySQLiteOpenHelper.COLUMN_RECIPIENT.equals(projection[i])) {
+                    row[i] = comment.getRecipient();
+                } else if (MySQLiteOpenHelper.COLUMN_CONTENT.equals(projection[i])) {
+                    row[i] = comment.getContentPreview();
+                } else {
+                    throw new IllegalArgumentException("Unknown column: " + projection[i]);
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    /**
+     * Deletes comments.  For {@code comments/<email>}, this deletes the
+     * recipient's comment.  For {@code comments}, with no selection, this
+     * deletes every comment.
+     */
+    @Override
+    public int delete(final Uri uri, String selection, String[] selectionArgs) {
+        checkNoSelection(uri, selection);
+        return DELETE_STATS.time(new OperationStats.Operation<Integer>() {
+            @Override
+            Integer run() {
+                int count = deleteComments(uri);
+                Tracer.trace(Log.DEBUG, Tracer.PROVIDER_DELETE, null, getStartNanos());
+                return count;
+            }
+        });
+    }
+
+    private int deleteComments(Uri uri) {
+        CommentsDataSource cds = getDataSource();
+        switch (sURIMatcher.match(uri)) {
+            case COMMENTS:
+                return cds.deleteAllComments();
+            case COMMENTS_EMAIL:
+                return cds.deleteCommentForRecipient(uri.getLastPathSegment()) ? 1 : 0;
+            default:
+                throw new IllegalArgumentException("Illegal uri: " + uri);
+        }
     }
 
     @Override
@@ -78,20 +543,163 @@ public class CommentContentProvider extends ContentProvider {
         switch (sURIMatcher.match(uri)) {
             case COMMENTS_EMAIL:
             case COMMENTS:
+            case COMMENTS_SEARCH:
+            case COMMENTS_STATS:
+            case COMMENTS_BATCH:
+            case COMMENTS_HISTORY:
                 return ContentResolver.CURSOR_DIR_BASE_TYPE;
+            case COMMENTS_EXPORT:
+                return EXPORT_MIME_TYPE;
+            case COMMENTS_BODY:
+                return BODY_MIME_TYPE;
             default:
                 Log.e(TAG, "Unrecognized uri: " + uri);
                 return null;
         }
     }
 
+    /**
+     * Inserts or replaces a recipient's comment.  The content must be given in
+     * {@link MySQLiteOpenHelper#COLUMN_CONTENT}.  The recipient is the last
+     * segment of a {@code comments/<email>} URI or, for {@code comments}, is
+     * given in {@link MySQLiteOpenHelper#COLUMN_RECIPIENT}.
+     */
+    @Override
+    public Uri insert(final Uri uri, final ContentValues values) {
+        return INSERT_STATS.time(new OperationStats.Operation<Uri>() {
+            @Override
+            Uri run() {
+                String recipient = getRecipient(uri, values);
+                getDataSource().createComment(recipient, getContent(values));
+                Tracer.trace(Log.DEBUG, Tracer.PROVIDER_INSERT, null, getStartNanos());
+                return Uri.withAppendedPath(CONTENT_URI, recipient);
+            }
+        });
+    }
+
+    /**
+     * Inserts or replaces the comments in a single transaction.  Listeners
+     * are notified once, after the transaction is committed.
+     */
+    @Override
+    public int bulkInsert(final Uri uri, final ContentValues[] valuesArray) {
+        return BULK_INSERT_STATS.time(new OperationStats.Operation<Integer>() {
+            @Override
+            Integer run() {
+                int count = insertComments(uri, valuesArray);
+                Tracer.trace(Log.DEBUG, Tracer.PROVIDER_BULK_INSERT, null, getStartNanos());
+                return count;
+            }
+        });
+    }
+
+    private int insertComments(Uri uri, ContentValues[] valuesArray) {
+        CommentsDataSource cds = getDataSource();
+        cds.beginTransaction();
+        try {
+            for (ContentValues values : valuesArray) {
+                cds.createComment(getRecipient(uri, values), getContent(values));
+            }
+            cds.setTransactionSuccessful();
+        } finally {
+            cds.endTransaction();
+        }
+        return valuesArray.length;
+    }
+
+    /**
+     * Applies the operations in a single transaction, which is rolled back if
+     * any of them fails.  Listeners are notified once, after the transaction
+     * is committed.
+     */
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
-        throw new UnsupportedOperationException("insert not supported");
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        CommentsDataSource cds = getDataSource();
+        cds.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            cds.setTransactionSuccessful();
+            succeeded = true;
+            return results;
+        } finally {
+            cds.endTransaction();
+            if (succeeded) {
+                APPLY_BATCH_STATS.record(start, operations.size());
+                Tracer.trace(Log.DEBUG, Tracer.PROVIDER_APPLY_BATCH, null, start);
+            } else {
+                APPLY_BATCH_STATS.recordError(start);
+            }
+        }
     }
 
+    /**
+     * Replaces the content of an existing comment.  Only
+     * {@code comments/<email>} URIs are supported, and the new content must be
+     * given in {@link MySQLiteOpenHelper#COLUMN_CONTENT}.
+     */
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new UnsupportedOperationException("update not supported");
+    public int update(final Uri uri, final ContentValues values, String selection,
+            String[] selectionArgs) {
+        checkNoSelection(uri, selection);
+        if (sURIMatcher.match(uri) != COMMENTS_EMAIL) {
+            throw new IllegalArgumentException("Illegal uri: " + uri);
+        }
+        return UPDATE_STATS.time(new OperationStats.Operation<Integer>() {
+            @Override
+            Integer run() {
+                int count = getDataSource().updateCommentForRecipient(uri.getLastPathSegment(),
+                        getContent(values)) ? 1 : 0;
+                Tracer.trace(Log.DEBUG, Tracer.PROVIDER_UPDATE, null, getStartNanos());
+                return count;
+            }
+        });
+    }
+
+    private static long parseLong(Uri uri, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal query parameter in uri: " + uri);
+        }
+    }
+
+    private static int parseInt(Uri uri, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Illegal query parameter in uri: " + uri);
+        }
+    }
+
+    private static void checkNoSelection(Uri uri, String selection) {
+        if (selection != null) {
+            throw new IllegalArgumentException("Selections are not supported: " + uri);
+        }
+    }
+
+    private static String getRecipient(Uri uri, ContentValues values) {
+        switch (sURIMatcher.match(uri)) {
+            case COMMENTS:
+                String recipient = values.getAsString(MySQLiteOpenHelper.COLUMN_RECIPIENT);
+                if (recipient == null) {
+                    throw new IllegalArgumentException("No recipient given for " + uri);
+                }
+                return recipient;
+            case COMMENTS_EMAIL:
+                return uri.getLastPathSegment();
+            default:
+                throw new IllegalArgumentException("Illegal uri: " + uri);
+        }
+    }
+
+    private static String getContent(ContentValues values) {
+        String content = values.getAsString(MySQLiteOpenHelper.COLUMN_CONTENT);
+        if (content == null) {
+            throw new IllegalArgumentException("No content given");
+        }
+        return content;
     }
 }
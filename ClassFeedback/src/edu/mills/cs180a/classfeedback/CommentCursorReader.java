@@ -0,0 +1,86 @@
+package edu.mills.cs180a.classfeedback;
+
+import android.database.Cursor;
+
+/**
+ * Reads {@link Comment}s from the rows of cursors over
+ * {@link MySQLiteOpenHelper#VIEW_COMMENTS}.  The positions of the columns are
+ * looked up once, when the reader is constructed, so the cursor may have been
+ * created with any projection that includes the id, recipient and content.
+ * The reader may be used with any later cursor created with the same projection.
+ * If the projection also includes {@link MySQLiteOpenHelper#COLUMN_BODY_FILE},
+ * comments whose bodies are stored externally read them lazily from the
+ * {@link BlobStore}; otherwise they hold only their previews.  Likewise, if it
+ * includes {@link MySQLiteOpenHelper#COLUMN_CONTENT_DEFLATED} and
+ * {@link MySQLiteOpenHelper#COLUMN_DICTIONARY_ID}, compressed content is read
+ * in its encoded form, to be decoded by the comment when needed.
+ */
+class CommentCursorReader {
+    private final int mIdIndex;
+    private final int mRecipientIndex;
+    private final int mContentIndex;
+    private final int mBodyFileIndex;
+    private final int mDeflatedIndex;
+    private final int mDictionaryIdIndex;
+    private final BlobStore mBlobs;
+    private final CommentCodec mCodec;
+
+    /**
+     * Constructs a reader for cursors with the same columns as the specified one.
+     *
+     * @param cursor a cursor whose columns are to be looked up
+     * @param blobs the store holding externally stored bodies, or {@code null}
+     * @param codec the codec whose dictionaries decode compressed content
+     * @throws IllegalArgumentException if a required column is missing
+     */
+    CommentCursorReader(Cursor cursor, BlobStore blobs, CommentCodec codec) {
+        mIdIndex = cursor.getColumnIndexOrThrow(MySQLiteOpenHelper.COLUMN_ID);
+        mRecipientIndex = cursor.getColumnIndexOrThrow(MySQLiteOpenHelper.COLUMN_RECIPIENT);
+        mContentIndex = cursor.getColumnIndexOrThrow(MySQLiteOpenHelper.COLUMN_CONTENT);
+        mBodyFileIndex = blobs == null ? -1
+                : cursor.getColumnIndex(MySQLiteOpenHelper.COLUMN_BODY_FILE);
+        mDeflatedIndex = cursor.getColumnIndex(MySQLiteOpenHelper.COLUMN_CONTENT_DEFLATED);
+        mDictionaryIdIndex = cursor.getColumnIndex(MySQLiteOpenHelper.COLUMN_DICTIONARY_ID);
+        mBlobs = blobs;
+        mCodec = codec;
+    }
+
+    /**
+     * Constructs a {@link Comment} from the cursor's current row.
+     *
+     * @param cursor the cursor to read from
+     * @return a new comment
+     */
+    Comment read(Cursor cursor) {
+        Comment comment = new Comment(cursor.getLong(mIdIndex), cursor.getString(mRecipientIndex),
+                cursor.getString(mContentIndex), mBlobs, getBodyFile(cursor));
+        readEncodedContent(cursor, comment);
+        return comment;
+    }
+
+    /**
+     * Copies the cursor's current row into an existing {@link Comment}.
+     *
+     * @param cursor the cursor to read from
+     * @param comment the comment to overwrite
+     */
+    void readInto(Cursor cursor, Comment comment) {
+        comment.set(cursor.getLong(mIdIndex), cursor.getString(mRecipientIndex),
+                cursor.getString(mContentIndex), mBlobs, getBodyFile(cursor));
+        readEncodedContent(cursor, comment);
+    }
+
+    private String getBodyFile(Cursor cursor) {
+        return mBodyFileIndex == -1 ? null : cursor.getString(mBodyFileIndex);
+    }
+
+    private void readEncodedContent(Cursor cursor, Comment comment) {
+        if (mDeflatedIndex == -1 || cursor.isNull(mDeflatedIndex)) {
+            return;
+        }
+        long dictionaryId = mDictionaryIdIndex == -1 || cursor.isNull(mDictionaryIdIndex)
+                ? CommentCodec.NO_DICTIONARY : cursor.getLong(mDictionaryIdIndex);
+        comment.setEncodedContent(cursor.getBlob(mDeflatedIndex),
+                mCodec.getDictionary(dictionaryId));
+    }
+}
@@ -0,0 +1,120 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import android.database.Cursor;
+
+/**
+ * An iterator over every comment in a {@link CommentsDataSource}, in increasing
+ * order of id.  Rows are read lazily, one page at a time, so memory use does
+ * not grow with the number of comments.  The iterator should be closed if it
+ * is abandoned before {@link #hasNext()} returns {@code false}.
+ *
+ * <P>If constructed in reuse mode, {@link #next()} returns the same
+ * {@link Comment} instance every time, overwritten with the next row, so that
+ * no comment is allocated per row.  Callers that keep a comment beyond the
+ * next call to {@code next()} must copy it.
+ *
+ * <P>Instances are obtained through {@link CommentsDataSource#iterateComments(boolean)}
+ * or {@link CommentsDataSource#iterateComments(boolean, int)}.
+ */
+public class CommentIterator implements Iterator<Comment>, Closeable {
+    /**
+     * The number of comments read from the database at a time, unless another
+     * is specified.
+     */
+    static final int DEFAULT_PAGE_SIZE = 256;
+
+    private final CommentsDataSource mCds;
+    private final int mPageSize;
+    private final Comment mReusedComment;
+    private Cursor mCursor;
+    private CommentCursorReader mReader;
+    private long mLastId = CommentsDataSource.FIRST_PAGE;
+    private boolean mLastPage;
+    private boolean mHasNext;
+
+    CommentIterator(CommentsDataSource cds, boolean reuseComment, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+        mCds = cds;
+        mPageSize = pageSize;
+        mReusedComment = reuseComment
+                ? new Comment(Comment.NO_ID, null, null)
+                : null;
+        advance();
+    }
+
+    // Moves to the next row, fetching the next page if necessary.
+    private void advance() {
+        while (true) {
+            if (mCursor != null && mCursor.moveToNext()) {
+                mHasNext = true;
+                return;
+            }
+            if (mCursor != null) {
+                mLastPage = mCursor.getCount() < mPageSize;
+                mCursor.close();
+                mCursor = null;
+            }
+            if (mLastPage) {
+                mHasNext = false;
+                return;
+            }
+            mCursor = mCds.queryCommentsPage(mLastId, mPageSize, null);
+            if (mReader == null) {
+                // Every page has the same columns, so look them up only once.
+                mReader = mCds.createReader(mCursor);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return mHasNext;
+    }
+
+    @Override
+    public Comment next() {
+        if (!mHasNext) {
+            throw new NoSuchElementException();
+        }
+        Comment comment;
+        if (mReusedComment == null) {
+            comment = mReader.read(mCursor);
+        } else {
+            mReader.readInto(mCursor, mReusedComment);
+            comment = mReusedComment;
+        }
+        mLastId = comment.getId();
+        advance();
+        return comment;
+    }
+
+    /**
+     * Not supported.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove not supported");
+    }
+
+    /**
+     * Releases the current page.  After this is called, {@link #hasNext()}
+     * returns {@code false}.
+     */
+    @Override
+    public void close() {
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+        mLastPage = true;
+        mHasNext = false;
+    }
+}
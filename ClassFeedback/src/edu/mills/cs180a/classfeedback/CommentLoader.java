@@ -0,0 +1,259 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Opens a {@link CommentsDataSource} and reads a recipient's draft or comment
+ * on a background thread, for {@link CommentActivity}, so that opening the
+ * database and querying it never delay its first frame.
+ *
+ * <P>A load can be started by {@link #prefetch(CommentsDataSourceAbstractFactory, String)}
+ * as soon as the user touches a recipient, before the activity is even
+ * created, and is then claimed by {@link #load(CommentsDataSourceAbstractFactory,
+ * DraftStore, String, Callback)}.  A prefetch that is not claimed within
+ * {@link #PREFETCH_TTL_MILLIS} is discarded and its data source closed.
+ *
+ * <P>Methods other than {@link #getInstance(Context)} must be called on the
+ * main thread, which is also where callbacks are called.
+ */
+class CommentLoader {
+    private static final String TAG = "CommentLoader";
+
+    /**
+     * How long, in milliseconds, a prefetched load is kept for an activity to
+     * claim it.
+     */
+    static final long PREFETCH_TTL_MILLIS = 5000;
+
+    private static CommentLoader sInstance;
+
+    /**
+     * A callback for when a load is complete.
+     */
+    interface Callback {
+        /**
+         * Called on the main thread once the data source is open and the
+         * recipient's draft or the content of their comment has been read.
+         *
+         * @param cds the open data source, which now belongs to the callback
+         *        and should be closed through {@link CommentLoader#close(CommentsDataSource)}
+         * @param draft the recipient's draft, or {@code null} if there is none
+         * @param content the content of the recipient's comment, or {@code null}
+         *        if there is none or there is a draft
+         */
+        void onCommentLoaded(CommentsDataSource cds, String draft, String content);
+
+        /**
+         * Called on the main thread if the data source could not be opened or
+         * the recipient's draft or comment could not be read.  The data source
+         * has already been closed.
+         *
+         * @param e the exception that stopped the load
+         */
+        void onCommentLoadFailed(RuntimeException e);
+    }
+
+    private final Context mContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+    // Prefetched loads not yet claimed, by recipient.
+    private final Map<String, Load> mPrefetches = new HashMap<String, Load>();
+
+    private CommentLoader(Context context) {
+        mContext = context;
+        mExecutor = Executors.newSingleThreadExecutor(new BackgroundThreadFactory(TAG));
+    }
+
+    /**
+     * Gets the loader for this process.
+     *
+     * @param context any context of this application
+     * @return the loader
+     */
+    static synchronized CommentLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CommentLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Starts loading the recipient's comment, unless a load is already
+     * waiting to be claimed.
+     *
+     * @param factory the factory for the data source to open
+     * @param recipient the email address of the recipient
+     */
+    void prefetch(CommentsDataSourceAbstractFactory factory, String recipient) {
+        if (!mPrefetches.containsKey(recipient)) {
+            Load load = new Load(factory, DraftStore.getInstance(mContext), recipient);
+            mPrefetches.put(recipient, load);
+            mExecutor.execute(load);
+        }
+    }
+
+    /**
+     * Loads the recipient's comment, claiming a prefetched load for the same
+     * kind of data source and the same drafts if there is one.
+     *
+     * @param factory the factory for the data source to open
+     * @param drafts the store from which to read the recipient's draft
+     * @param recipient the email address of the recipient
+     * @param callback the callback to call once the load is complete
+     * @return a handle with which the load can be cancelled
+     */
+    Load load(CommentsDataSourceAbstractFactory factory, DraftStore drafts, String recipient,
+            Callback callback) {
+        Load load = mPrefetches.remove(recipient);
+        if (load == null || load.mFactory.getClass() != factory.getClass()
+                || load.mDrafts != drafts) {
+            if (load != null) {
+                load.cancel();
+            }
+            load = new Load(factory, drafts, recipient);
+            mExecutor.execute(load);
+        }
+        load.claim(callback);
+        return load;
+    }
+
+    /**
+     * Closes a data source that was passed to a {@link Callback}.  It is closed
+     * on the background thread, after any writes queued through it have been
+     * made, so the caller never waits for the disk.
+     *
+     * @param cds the data source
+     */
+    void close(final CommentsDataSource cds) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                cds.close();
+            }
+        });
+    }
+
+    /**
+     * A load of one recipient's comment.  Its fields other than those set on
+     * the background thread are only used on the main thread.
+     */
+    class Load implements Runnable {
+        private final CommentsDataSourceAbstractFactory mFactory;
+        private final DraftStore mDrafts;
+        private final String mRecipient;
+        // These are set on the background thread before mDeliverTask is posted.
+        private CommentsDataSource mCds;
+        private String mDraft;
+        private String mContent;
+        private RuntimeException mError;
+
+        private Callback mCallback;
+        private boolean mDone;
+        private boolean mDelivered;
+        private boolean mCancelled;
+        private final Runnable mDeliverTask = new Runnable() {
+            @Override
+            public void run() {
+                mDone = true;
+                deliver();
+            }
+        };
+        private final Runnable mExpireTask = new Runnable() {
+            @Override
+            public void run() {
+                if (mPrefetches.get(mRecipient) == Load.this) {
+                    mPrefetches.remove(mRecipient);
+                    cancel();
+                }
+            }
+        };
+
+        Load(CommentsDataSourceAbstractFactory factory, DraftStore drafts, String recipient) {
+            mFactory = factory;
+            mDrafts = drafts;
+            mRecipient = recipient;
+        }
+
+        // Runs on the background thread.
+        @Override
+        public void run() {
+            CommentsDataSource cds = mFactory.createCommentsDataSource(mContext);
+            try {
+                cds.open();
+                mDraft = mDrafts.read(mRecipient);
+                if (mDraft == null) {
+                    // This may read a body stored outside the database.
+                    Comment comment = cds.getCommentForRecipient(mRecipient);
+                    mContent = comment == null ? null : comment.getContent();
+                }
+                mCds = cds;
+            } catch (RuntimeException e) {
+                // This is safe even if open() failed.
+                cds.close();
+                mError = e;
+            }
+            mMainHandler.post(mDeliverTask);
+        }
+
+        private void claim(Callback callback) {
+            mCallback = callback;
+            mMainHandler.removeCallbacks(mExpireTask);
+            if (mDone) {
+                deliver();
+            }
+        }
+
+        /**
+         * Cancels the load, closing its data source, unless the callback has
+         * already been called.
+         */
+        void cancel() {
+            if (mDelivered) {
+                return;
+            }
+            mCancelled = true;
+            mCallback = null;
+            if (mDone) {
+                close();
+            }
+        }
+
+        private void deliver() {
+            if (mCancelled) {
+                close();
+            } else if (mCallback != null) {
+                Callback callback = mCallback;
+                mCallback = null;
+                mDelivered = true;  // The data source now belongs to the callback.
+                if (mError != null) {
+                    callback.onCommentLoadFailed(mError);
+                    return;
+                }
+                callback.onCommentLoaded(mCds, mDraft, mContent);
+            } else if (mError != null) {
+                // Let the activity try again.
+                Log.w(TAG, "Unable to prefetch comment.", mError);
+                mPrefetches.remove(mRecipient);
+            } else {
+                mMainHandler.postDelayed(mExpireTask, PREFETCH_TTL_MILLIS);
+            }
+        }
+
+        // Closes the data source in the background, once it has been opened.
+        private void close() {
+            CommentsDataSource cds = mCds;
+            mCds = null;
+            if (cds != null) {
+                CommentLoader.this.close(cds);
+            }
+        }
+    }
+}
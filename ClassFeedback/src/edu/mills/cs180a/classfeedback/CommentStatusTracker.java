@@ -0,0 +1,177 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Keeps track of the length of each recipient's comment, for display in a
+ * list of people.  The lengths are read with a single query on a background
+ * thread when tracking starts.  After that, a change to one recipient's
+ * comment re-reads only that recipient's length, and any other change
+ * re-reads all of them.
+ *
+ * <P>Except where noted, methods must be called on the main thread, which is
+ * also where the listener is called.
+ */
+class CommentStatusTracker {
+    private static final String TAG = "CommentStatusTracker";
+
+    /**
+     * The length returned for a recipient who has no comment.
+     */
+    static final int NO_COMMENT = -1;
+
+    /**
+     * A callback for when comment lengths have changed.
+     */
+    interface OnChangeListener {
+        void onCommentStatusChanged();
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final CommentsDataSource mCds;
+    private final Context mContext;
+    private final OnChangeListener mListener;
+    // Reads are done in order on one thread, so a later result is never
+    // overwritten by an earlier one.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new BackgroundThreadFactory(TAG));
+    private Map<String, Integer> mLengths = new HashMap<String, Integer>();
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // Before API 16, the URI is not provided.
+            if (uri != null && uri.getPathSegments().size() == 2) {
+                reload(uri.getLastPathSegment());
+            } else {
+                reloadAll();
+            }
+        }
+    };
+
+    /**
+     * Constructs a tracker, which does nothing until {@link #start()} is called.
+     *
+     * @param context the context
+     * @param factory the factory for the data source from which lengths are read
+     * @param listener the listener to call when lengths change
+     */
+    CommentStatusTracker(Context context, CommentsDataSourceAbstractFactory factory,
+            OnChangeListener listener) {
+        mContext = context;
+        mCds = factory.createCommentsDataSource(context);
+        mListener = listener;
+    }
+
+    /**
+     * Starts tracking comment lengths.
+     */
+    void start() {
+        mContext.getContentResolver().registerContentObserver(
+                CommentContentProvider.CONTENT_URI, true, mObserver);
+        reloadAll();
+    }
+
+    /**
+     * Stops tracking and releases the data source.
+     */
+    void stop() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCds.close();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Gets the length of the recipient's comment.
+     *
+     * @param recipient the email address of the recipient
+     * @return the length of the comment, or {@link #NO_COMMENT} if the
+     *         recipient has none or it has not been read yet
+     */
+    int getLength(String recipient) {
+        Integer length = mLengths.get(recipient);
+        return length == null ? NO_COMMENT : length;
+    }
+
+    private void reloadAll() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, Integer> lengths = read(null);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLengths = lengths;
+                        mListener.onCommentStatusChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    private void reload(final String recipient) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                final Map<String, Integer> lengths = read(recipient);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        Integer length = lengths.get(recipient);
+                        if (length == null) {
+                            mLengths.remove(recipient);
+                        } else {
+                            mLengths.put(recipient, length);
+                        }
+                        mListener.onCommentStatusChanged();
+                    }
+                });
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        if (!mExecutor.isShutdown()) {
+            mExecutor.execute(task);
+        }
+    }
+
+    // Runs on the background thread.
+    private Map<String, Integer> read(String recipient) {
+        Map<String, Integer> lengths = new HashMap<String, Integer>();
+        Cursor cursor = null;
+        try {
+            cursor = mCds.getCursorForCommentLengths(recipient);
+            while (cursor.moveToNext()) {
+                lengths.put(cursor.getString(0), cursor.getInt(1));
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Unable to read comment lengths.", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return lengths;
+    }
+}
@@ -0,0 +1,219 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Streams every current comment out of a {@link CommentsDataSource}, or a
+ * stream of comments into one, on background threads.  Comments are written
+ * as newline-delimited JSON, one object per line with the string members
+ * {@value #RECIPIENT} and {@value #CONTENT}:
+ *
+ * <pre>
+ * {"recipient":"ellen.spertus@gmail.com","content":"Great job!"}
+ * </pre>
+ *
+ * <P>Memory use does not grow with the number of comments.  An export reads
+ * comments a page at a time, and blocks while its reader falls behind.  An
+ * import reads a line at a time and commits every
+ * {@value #IMPORT_BATCH_SIZE} comments in one transaction.  If an import
+ * fails part way, the batches already committed are kept.
+ */
+class CommentStreamer {
+    private static final String TAG = "CommentStreamer";
+
+    /**
+     * The MIME type of the stream.
+     */
+    static final String MIME_TYPE = "application/x-ndjson";
+
+    /**
+     * The name of the member giving the recipient's email address.
+     */
+    static final String RECIPIENT = MySQLiteOpenHelper.COLUMN_RECIPIENT;
+
+    /**
+     * The name of the member giving the comment's content.
+     */
+    static final String CONTENT = MySQLiteOpenHelper.COLUMN_CONTENT;
+
+    /**
+     * The number of comments imported in each transaction.
+     */
+    static final int IMPORT_BATCH_SIZE = 500;
+
+    private static final String CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+    private static final OperationStats EXPORT_STATS =
+            OperationStats.create("CommentStreamer.exportComments");
+    private static final OperationStats IMPORT_STATS =
+            OperationStats.create("CommentStreamer.importComments");
+
+    private final ExecutorService mExecutor =
+            Executors.newCachedThreadPool(new BackgroundThreadFactory(TAG));
+
+    /**
+     * Starts writing every current comment, in increasing order of id, to
+     * the output, which is closed when done.  Comments written while the
+     * export is in progress may or may not be included.
+     *
+     * @param cds the data source from which to read comments
+     * @param output the write end of a pipe
+     */
+    void exportComments(final CommentsDataSource cds, ParcelFileDescriptor output) {
+        final ParcelFileDescriptor.AutoCloseOutputStream out =
+                new ParcelFileDescriptor.AutoCloseOutputStream(output);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                int count = 0;
+                CommentIterator it = null;
+                try {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET),
+                            BUFFER_SIZE);
+                    it = cds.iterateComments(true);
+                    while (it.hasNext()) {
+                        writeComment(writer, it.next());
+                        count++;
+                    }
+                    writer.flush();
+                    EXPORT_STATS.record(start, count);
+                } catch (IOException e) {
+                    // The reader most likely closed its end of the pipe.
+                    Log.w(TAG, "Export stopped after " + count + " comments.", e);
+                    EXPORT_STATS.recordError(start);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Export failed after " + count + " comments.", e);
+                    EXPORT_STATS.recordError(start);
+                } finally {
+                    if (it != null) {
+                        it.close();
+                    }
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts writing text to the output, which is closed when done.
+     *
+     * @param content the text, which is encoded in UTF-8
+     * @param output the write end of a pipe
+     */
+    void writeContent(final String content, ParcelFileDescriptor output) {
+        final ParcelFileDescriptor.AutoCloseOutputStream out =
+                new ParcelFileDescriptor.AutoCloseOutputStream(output);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Writer writer = new OutputStreamWriter(out, CHARSET);
+                    writer.write(content);
+                    writer.flush();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to write comment content.", e);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        });
+    }
+
+    // JSONObject.quote() escapes line breaks, so each comment is on one line.
+    private static void writeComment(Writer writer, Comment comment) throws IOException {
+        writer.write("{\"" + RECIPIENT + "\":");
+        writer.write(JSONObject.quote(comment.getRecipient()));
+        writer.write(",\"" + CONTENT + "\":");
+        writer.write(JSONObject.quote(comment.getContent()));
+        writer.write("}\n");
+    }
+
+    /**
+     * Starts reading comments from the input, which is closed when done, and
+     * saving each with {@link CommentsDataSource#createComment(String, String)}.
+     * Blank lines are skipped.  The import stops at the first line that is
+     * not a comment.
+     *
+     * @param cds the data source in which to save comments
+     * @param input the read end of a pipe
+     */
+    void importComments(final CommentsDataSource cds, ParcelFileDescriptor input) {
+        final ParcelFileDescriptor.AutoCloseInputStream in =
+                new ParcelFileDescriptor.AutoCloseInputStream(input);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                int count = 0;
+                try {
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(in, CHARSET), BUFFER_SIZE);
+                    int batchCount;
+                    do {
+                        cds.beginTransaction();
+                        try {
+                            batchCount = importBatch(cds, reader);
+                            cds.setTransactionSuccessful();
+                        } finally {
+                            cds.endTransaction();
+                        }
+                        count += batchCount;
+                    } while (batchCount == IMPORT_BATCH_SIZE);
+                    IMPORT_STATS.record(start, count);
+                } catch (IOException e) {
+                    Log.w(TAG, "Import stopped after " + count + " comments.", e);
+                    IMPORT_STATS.recordError(start);
+                } catch (JSONException e) {
+                    Log.e(TAG, "Import stopped at a malformed comment after " + count
+                            + " comments.", e);
+                    IMPORT_STATS.recordError(start);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Import failed after " + count + " comments.", e);
+                    IMPORT_STATS.recordError(start);
+                } finally {
+                    closeQuietly(in);
+                }
+            }
+        });
+    }
+
+    // Saves comments until a batch is complete or the input ends, returning
+    // the number saved.  This must be called within a transaction.
+    private static int importBatch(CommentsDataSource cds, BufferedReader reader)
+            throws IOException, JSONException {
+        int count = 0;
+        String line;
+        while (count < IMPORT_BATCH_SIZE && (line = reader.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                continue;
+            }
+            JSONObject json = new JSONObject(line);
+            cds.createComment(json.getString(RECIPIENT), json.getString(CONTENT));
+            count++;
+        }
+        return count;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close stream.", e);
+        }
+    }
+}
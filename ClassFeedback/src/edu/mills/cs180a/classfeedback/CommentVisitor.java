@@ -0,0 +1,16 @@
+package edu.mills.cs180a.classfeedback;
+
+/**
+ * A callback for each comment visited by
+ * {@link CommentsDataSource#forEachComment(CommentVisitor, boolean)}.
+ */
+public interface CommentVisitor {
+    /**
+     * Visits a comment.
+     *
+     * @param comment the comment, which may be reused for the next one if the
+     *        visit was requested in reuse mode
+     * @return {@code true} to continue with the next comment, {@code false} to stop
+     */
+    boolean visit(Comment comment);
+}
@@ -0,0 +1,116 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A write-behind queue that saves and deletes comments through a
+ * {@link CommentsDataSource} on a single background thread, so that callers
+ * such as {@link CommentActivity} never wait for the disk.
+ *
+ * <P>Writes for the same recipient are merged: only the last save or delete
+ * requested before the background thread gets to them is performed.  All of
+ * the writes waiting when the background thread wakes up are committed in a
+ * single transaction.  Use {@link #flush()} to wait for pending writes to land.
+ * The queueing is done by a {@link WriteCoalescer}.
+ *
+ * <P>Instances are obtained through {@link CommentsDataSource#getWriteQueue()}.
+ */
+public class CommentWriteQueue {
+    private static final String TAG = "CommentWriteQueue";
+    private final CommentsDataSource mCds;
+    // A null value means the recipient's comment is to be deleted.
+    private final WriteCoalescer mWrites;
+
+    CommentWriteQueue(CommentsDataSource cds) {
+        mCds = cds;
+        mWrites = new WriteCoalescer(TAG, new WriteCoalescer.BatchWriter() {
+            @Override
+            public void write(Map<String, String> batch) {
+                commit(batch);
+            }
+        });
+    }
+
+    /**
+     * Requests that a comment with the specified content be saved for the
+     * recipient, replacing any earlier request for the same recipient.
+     *
+     * @param recipient the email address of the recipient
+     * @param content the content of the comment
+     */
+    public void save(String recipient, String content) {
+        if (content == null) {
+            throw new NullPointerException("content");
+        }
+        mWrites.put(recipient, content);
+    }
+
+    /**
+     * Requests that the recipient's comment be deleted, replacing any earlier
+     * request for the same recipient.
+     *
+     * @param recipient the email address of the recipient
+     */
+    public void delete(String recipient) {
+        mWrites.put(recipient, null);
+    }
+
+    /**
+     * Gets the comment that will be in the database for the specified
+     * recipient once pending writes land, so that readers see their own writes.
+     *
+     * @param recipient the email address of the recipient
+     * @return {@code null} if no write is pending for the recipient; otherwise
+     *         a {@link Comment} without an id, whose content is {@code null} if
+     *         the comment is to be deleted
+     */
+    Comment getPendingComment(String recipient) {
+        synchronized (mWrites) {
+            if (!mWrites.isPending(recipient)) {
+                return null;
+            }
+            return new Comment(Comment.NO_ID, recipient, mWrites.getPending(recipient));
+        }
+    }
+
+    /**
+     * Blocks until every write requested before this call has been committed
+     * to the database (or has failed and been logged).
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        mWrites.flush();
+    }
+
+    /**
+     * Flushes pending writes and stops the background thread.  Requests
+     * made after this is called are rejected.
+     */
+    void close() {
+        mWrites.close();
+    }
+
+    // Runs on the background thread.
+    private void commit(Map<String, String> batch) {
+        try {
+            mCds.beginTransaction();
+            try {
+                for (Map.Entry<String, String> write : batch.entrySet()) {
+                    if (write.getValue() == null) {
+                        mCds.deleteCommentForRecipient(write.getKey());
+                    } else {
+                        mCds.createComment(write.getKey(), write.getValue());
+                    }
+                }
+                mCds.setTransactionSuccessful();
+            } finally {
+                mCds.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to write " + batch.size() + " comments.", e);
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package edu.mills.cs180a.classfeedback;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
 import android.util.Log;
 
 /**
@@ -20,15 +30,206 @@ import android.util.Log;
  */
 public class CommentsDataSource {
     private static final String TAG = "CommentsDataSource";
+    private static final String INSERT_RECIPIENT = "INSERT OR IGNORE INTO "
+            + MySQLiteOpenHelper.TABLE_RECIPIENTS + " ("
+            + MySQLiteOpenHelper.COLUMN_EMAIL + ") VALUES (?)";
+    private static final String SELECT_RECIPIENT_ID = "SELECT "
+            + MySQLiteOpenHelper.COLUMN_ID + " FROM "
+            + MySQLiteOpenHelper.TABLE_RECIPIENTS + " WHERE "
+            + MySQLiteOpenHelper.COLUMN_EMAIL + " = ?";
+    private static final String RECIPIENT_EMAIL_SELECTION =
+            MySQLiteOpenHelper.COLUMN_RECIPIENT_ID + " = (" + SELECT_RECIPIENT_ID + ")";
+    private static final String INSERT_VERSION_COLUMNS = "INSERT INTO "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + " ("
+            + MySQLiteOpenHelper.COLUMN_RECIPIENT_ID + ", "
+            + MySQLiteOpenHelper.COLUMN_VERSION + ", "
+            + MySQLiteOpenHelper.COLUMN_CONTENT + ", "
+            + MySQLiteOpenHelper.COLUMN_CREATED + ", "
+            + MySQLiteOpenHelper.COLUMN_BODY_FILE + ", "
+            + MySQLiteOpenHelper.COLUMN_BODY_LENGTH + ", "
+            + MySQLiteOpenHelper.COLUMN_CONTENT_DEFLATED + ", "
+            + MySQLiteOpenHelper.COLUMN_DICTIONARY_ID + ") ";
+    // Appends the next version for a recipient id (?1) with content (?2)
+    // saved at a time (?3), whose body may be stored externally in a file
+    // (?4) or compressed (?6) with a dictionary (?7), with a length (?5).
+    // The highest version is found through an index.
+    private static final String APPEND_VERSION = INSERT_VERSION_COLUMNS + "VALUES (?1, "
+            + "coalesce((SELECT max(" + MySQLiteOpenHelper.COLUMN_VERSION + ") FROM "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + " WHERE "
+            + MySQLiteOpenHelper.COLUMN_RECIPIENT_ID + " = ?1), 0) + 1, ?2, ?3, ?4, ?5, ?6, ?7)";
+    // Selects the next version number after each latest version that is not
+    // a deletion.
+    private static final String SELECT_NEXT_VERSION = "SELECT "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + "."
+            + MySQLiteOpenHelper.COLUMN_RECIPIENT_ID + ", "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + "."
+            + MySQLiteOpenHelper.COLUMN_VERSION + " + 1, ";
+    private static final String FROM_CURRENT_VERSIONS = " FROM "
+            + MySQLiteOpenHelper.TABLE_LATEST_VERSIONS + " JOIN "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + " ON "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + "." + MySQLiteOpenHelper.COLUMN_ID
+            + " = " + MySQLiteOpenHelper.TABLE_LATEST_VERSIONS + "."
+            + MySQLiteOpenHelper.COLUMN_VERSION_ID + " WHERE "
+            + MySQLiteOpenHelper.TABLE_COMMENT_VERSIONS + "." + MySQLiteOpenHelper.COLUMN_CONTENT
+            + " IS NOT NULL";
+    // Appends a version with content (the first argument, or null for a
+    // deletion) saved at a time (the second), whose body may be stored
+    // externally in a file (the third) or compressed (the fifth) with a
+    // dictionary (the sixth), with a length (the fourth), for the recipient
+    // with an email address (the seventh), if the recipient has a comment.
+    private static final String APPEND_VERSION_FOR_EMAIL = INSERT_VERSION_COLUMNS
+            + SELECT_NEXT_VERSION + "?, ?, ?, ?, ?, ?" + FROM_CURRENT_VERSIONS + " AND "
+            + MySQLiteOpenHelper.TABLE_LATEST_VERSIONS + "." + RECIPIENT_EMAIL_SELECTION;
+    // Appends a deletion saved at a time (the argument) for every recipient
+    // with a comment.
+    private static final String APPEND_DELETIONS = INSERT_VERSION_COLUMNS
+            + SELECT_NEXT_VERSION + "NULL, ?, NULL, NULL, NULL, NULL"
+            + FROM_CURRENT_VERSIONS;
+    private static final String SELECT_CHANGES = "SELECT changes()";
+    private static final String SELECT_LAST_INSERT_ROWID = "SELECT last_insert_rowid()";
+    // Indexes the text of a compressed version (?2) under its id (?1).
+    private static final String INSERT_FTS = "INSERT INTO "
+            + MySQLiteOpenHelper.TABLE_COMMENTS_FTS + " (docid, "
+            + MySQLiteOpenHelper.COLUMN_CONTENT + ") VALUES (?, ?)";
+    private static final String AFTER_ID_SELECTION = MySQLiteOpenHelper.COLUMN_ID + " > ?";
+    private static final long NO_ID = -1;
+    // SQLite allows at most 999 arguments in a statement before version 3.32.
+    private static final int MAX_ARGUMENTS = 999;
+    // Content longer than this, in characters, is stored in the BlobStore,
+    // leaving a preview of PREVIEW_LENGTH characters in its row.  This keeps
+    // rows well within a CursorWindow, however long comments are.
+    private static final int LARGE_CONTENT_LENGTH = 64 * 1024;
+    private static final int PREVIEW_LENGTH = 1024;
+    // When compression is enabled, content at least this long is compressed.
+    // Shorter content gains too little.
+    private static final int MIN_COMPRESSED_LENGTH = 256;
+    // The number of most recent comments on which dictionaries are trained.
+    private static final int TRAINING_SAMPLES = 1000;
+    private static final String[] ENCODING_COLUMNS = {
+        MySQLiteOpenHelper.COLUMN_CONTENT_DEFLATED, MySQLiteOpenHelper.COLUMN_DICTIONARY_ID
+    };
+    private static final String[] SEARCH_COLUMNS = {
+        MySQLiteOpenHelper.COLUMN_ID, MySQLiteOpenHelper.COLUMN_RECIPIENT,
+        MySQLiteOpenHelper.COLUMN_CONTENT, MySQLiteOpenHelper.COLUMN_RECIPIENT_ID,
+        MySQLiteOpenHelper.COLUMN_RANK
+    };
+    private static final String[] LENGTHS_PROJECTION = {
+        MySQLiteOpenHelper.COLUMN_RECIPIENT,
+        "coalesce(" + MySQLiteOpenHelper.COLUMN_BODY_LENGTH + ", length("
+                + MySQLiteOpenHelper.COLUMN_CONTENT + ")) AS "
+                + MySQLiteOpenHelper.COLUMN_CONTENT_LENGTH
+    };
+    private static final String SEARCH_TABLES = MySQLiteOpenHelper.TABLE_COMMENTS_FTS
+            + " JOIN " + MySQLiteOpenHelper.VIEW_COMMENTS + " ON "
+            + MySQLiteOpenHelper.VIEW_COMMENTS + "." + MySQLiteOpenHelper.COLUMN_VERSION_ID
+            + " = " + MySQLiteOpenHelper.TABLE_COMMENTS_FTS + ".docid";
+    private static final String SEARCH_SELECTION =
+            MySQLiteOpenHelper.TABLE_COMMENTS_FTS + " MATCH ?";
+    // offsets() gives four space-separated integers for each occurrence of a
+    // search term, so the number of occurrences is (spaces + 1) / 4.
+    private static final String SEARCH_RANK = "((length(offsets("
+            + MySQLiteOpenHelper.TABLE_COMMENTS_FTS + ")) - length(replace(offsets("
+            + MySQLiteOpenHelper.TABLE_COMMENTS_FTS + "), ' ', '')) + 1) / 4)";
+    private static final String SEARCH_ORDER = SEARCH_RANK + " DESC, "
+            + MySQLiteOpenHelper.VIEW_COMMENTS + "." + MySQLiteOpenHelper.COLUMN_ID;
+    private static final OperationStats CREATE_STATS =
+            OperationStats.create("CommentsDataSource.createComment");
+    private static final OperationStats QUERY_RECIPIENT_STATS =
+            OperationStats.create("CommentsDataSource.getCursorForCommentForRecipient");
+    private static final OperationStats QUERY_ALL_STATS =
+            OperationStats.create("CommentsDataSource.getCursorForAllComments");
+    private static final OperationStats QUERY_PAGE_STATS =
+            OperationStats.create("CommentsDataSource.getCursorForCommentsPage");
+    private static final OperationStats QUERY_RECIPIENTS_STATS =
+            OperationStats.create("CommentsDataSource.getCursorForCommentsForRecipients");
+    private static final OperationStats QUERY_LENGTHS_STATS =
+            OperationStats.create("CommentsDataSource.getCursorForCommentLengths");
+    private static final OperationStats SEARCH_STATS =
+            OperationStats.create("CommentsDataSource.searchComments");
+    private static final OperationStats GET_STATS =
+            OperationStats.create("CommentsDataSource.getCommentForRecipient");
+    private static final OperationStats DELETE_STATS =
+            OperationStats.create("CommentsDataSource.deleteCommentForRecipient");
+    private static final OperationStats UPDATE_STATS =
+            OperationStats.create("CommentsDataSource.updateCommentForRecipient");
+    private static final OperationStats HISTORY_STATS =
+            OperationStats.create("CommentsDataSource.getCursorForCommentHistory");
+    private static final OperationStats COMPACT_STATS =
+            OperationStats.create("CommentsDataSource.compactHistory");
+    private static final OperationStats TRAIN_STATS =
+            OperationStats.create("CommentsDataSource.trainCompressionDictionary");
+    private static final OperationStats WARM_UP_STATS =
+            OperationStats.create("CommentsDataSource.warmUp");
+    private static final OperationStats DELETE_ALL_STATS =
+            OperationStats.create("CommentsDataSource.deleteAllComments");
+    private static final Map<String, String> SEARCH_PROJECTION_MAP = new HashMap<String, String>();
+    static {
+        for (String column : new String[] { MySQLiteOpenHelper.COLUMN_ID,
+                MySQLiteOpenHelper.COLUMN_RECIPIENT, MySQLiteOpenHelper.COLUMN_CONTENT,
+                MySQLiteOpenHelper.COLUMN_RECIPIENT_ID, MySQLiteOpenHelper.COLUMN_CONTENT_DEFLATED,
+                MySQLiteOpenHelper.COLUMN_DICTIONARY_ID }) {
+            SEARCH_PROJECTION_MAP.put(column, MySQLiteOpenHelper.VIEW_COMMENTS + "."
+                    + column + " AS " + column);
+        }
+        SEARCH_PROJECTION_MAP.put(MySQLiteOpenHelper.COLUMN_RANK,
+                SEARCH_RANK + " AS " + MySQLiteOpenHelper.COLUMN_RANK);
+    }
+
+    /**
+     * The value of {@code afterId} that requests the first page from
+     * {@link #getCursorForCommentsPage(long, int, String[])}.
+     */
+    public static final long FIRST_PAGE = 0;
+    private final Context context;
+    // This is null for an in-memory database, whose content is all inline.
+    private final BlobStore blobs;
+    // This is null for a new in-memory database.
+    private final String name;
+    private SharedDatabase shared;
+    // These belong to the shared database and are set while this is open.
     private SQLiteDatabase database;
-    private MySQLiteOpenHelper dbHelper;
+    private StatementCache statements;
+    private ReaderPool readers;
+    private WalCheckpointer checkpointer;
+    private CommentCompactor compactor;
+    private CommentCodec codec;
+    private volatile boolean compressionEnabled;
+    // The history policy to apply when this is opened, if one has been set.
+    private boolean historyConfigured;
+    private int maxVersions = CommentCompactor.DEFAULT_MAX_VERSIONS;
+    private long maxAgeMillis = CommentCompactor.NO_MAX_AGE;
+    private volatile CommentWriteQueue writeQueue;
+    private volatile CommentCache cache =
+            new CommentCache(CommentCache.DEFAULT_MAX_SIZE, CommentCache.NO_TTL);
+    // Invalidates the cache when comments are changed through a data source
+    // in another process.  Those in this process on the same database
+    // invalidate it directly.
+    private final ContentObserver cacheInvalidator = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            invalidateCache(uri);
+        }
+    };
+    // The URI whose change notification is deferred until the calling thread's
+    // outermost transaction ends.  Since data sources open on the same file
+    // share a connection, and so transactions, this is shared too.
+    private static final ThreadLocal<Uri> PENDING_CHANGE = new ThreadLocal<Uri>();
 
     protected CommentsDataSource(Context context) {
-        dbHelper = new MySQLiteOpenHelper(context);
+        this.context = context;
+        name = MySQLiteOpenHelper.DATABASE_NAME;
+        blobs = BlobStore.forDatabase(context, MySQLiteOpenHelper.DATABASE_NAME);
     }
 
     protected CommentsDataSource(Context context, String name) {
-        dbHelper = new MySQLiteOpenHelper(context, name);
+        this.context = context;
+        this.name = name;
+        blobs = BlobStore.forDatabase(context, name);
     }
 
     /**
@@ -44,58 +245,673 @@ public class CommentsDataSource {
 
     /**
      * Opens a connection to the database, creating it if necessary.
-     * This should be called before any of the other methods.
+     * Where the platform supports it, the database is put in write-ahead
+     * logging mode and queries run on separate read-only connections, so they
+     * are not blocked by writes.
+     * The connections, and the threads that maintain the database in the
+     * background, are shared with every other data source open on the same
+     * file in this process, so opening another costs little.
+     * This should be called before any of the other methods, and has no
+     * effect if this is already open.
      * When the connection is no longer needed, {@link #close()} should be called.
      *
      * @throws SQLException if the database could not be opened
      */
-    public void open() throws SQLException {
-        database = dbHelper.getWritableDatabase();
+    public synchronized void open() throws SQLException {
+        if (shared != null) {
+            return;
+        }
+        shared = SharedDatabase.acquire(context, name, blobs);
+        shared.attach(this);
+        database = shared.getDatabase();
+        statements = shared.getStatements();
+        readers = shared.getReaders();
+        checkpointer = shared.getCheckpointer();
+        compactor = shared.getCompactor();
+        codec = shared.getCodec();
+        if (historyConfigured) {
+            compactor.setPolicy(maxVersions, maxAgeMillis);
+        }
+        if (context != null) {
+            context.getContentResolver().registerContentObserver(
+                    CommentContentProvider.CONTENT_URI, true, cacheInvalidator);
+        }
+    }
+
+    /**
+     * Does the work that would otherwise slow the first requests after
+     * {@link #open()}, so that they take no longer than later ones.  The
+     * statements used for writing are compiled, each read-only connection
+     * reads the schema and compiles the lookup of a recipient's comment, and
+     * the latest compression dictionary is read.  This should be called on a
+     * background thread, right after {@link #open()}.
+     */
+    public void warmUp() {
+        WARM_UP_STATS.time(new OperationStats.Operation<Void>() {
+            @Override
+            Void run() {
+                for (String sql : new String[] { INSERT_RECIPIENT, SELECT_RECIPIENT_ID,
+                        APPEND_VERSION, APPEND_VERSION_FOR_EMAIL, APPEND_DELETIONS,
+                        SELECT_CHANGES }) {
+                    statements.get(sql);
+                }
+                // This is the query of queryCommentForRecipient(), for no one.
+                for (SQLiteDatabase reader : readers.getAll()) {
+                    Cursor cursor = reader.query(MySQLiteOpenHelper.VIEW_COMMENTS, null,
+                            RECIPIENT_EMAIL_SELECTION, new String[] { "" }, null, null, null);
+                    try {
+                        createReader(cursor);
+                        cursor.moveToFirst();
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                codec.getDictionary(codec.getLatestDictionaryId());
+                return null;
+            }
+        });
     }
 
     /**
-     * Closes the connection to the database, opened with {@link #open()}.
+     * Closes the connection to the database, opened with {@link #open()},
+     * unless another data source is still using it.
+     * Writes pending in the {@link #getWriteQueue() write queue} are flushed first.
+     * This may be called even if {@link #open()} failed or was never called.
      */
     public void close() {
-        database.close();
-        dbHelper.close();
+        if (writeQueue != null) {
+            writeQueue.close();
+            writeQueue = null;
+        }
+        if (context != null) {
+            context.getContentResolver().unregisterContentObserver(cacheInvalidator);
+        }
+        cache.invalidateAll();
+        release();
+    }
+
+    // This is missing if open() failed or was never called.
+    private synchronized void release() {
+        if (shared != null) {
+            database = null;
+            statements = null;
+            readers = null;
+            checkpointer = null;
+            compactor = null;
+            codec = null;
+            shared.detach(this);
+            shared.release();
+            shared = null;
+        }
+    }
+
+    /**
+     * Gets the queue through which comments can be saved and deleted without
+     * waiting for the disk.  Reads through {@link #getCommentForRecipient(String)}
+     * reflect writes still pending in the queue.
+     *
+     * @return the write-behind queue for this data source
+     */
+    public synchronized CommentWriteQueue getWriteQueue() {
+        if (writeQueue == null) {
+            writeQueue = new CommentWriteQueue(this);
+        }
+        return writeQueue;
+    }
+
+    /**
+     * Constructs a reader for cursors over comments queried from this data
+     * source, which reads content stored in files or compressed lazily.
+     *
+     * @param cursor a cursor whose columns are to be looked up
+     * @return the reader
+     */
+    CommentCursorReader createReader(Cursor cursor) {
+        return new CommentCursorReader(cursor, blobs, codec);
+    }
+
+    /**
+     * Begins a transaction on the calling thread.  Transactions may be nested.
+     * Writes made within the outermost transaction are committed together,
+     * and listeners on {@link CommentContentProvider#CONTENT_URI} are notified
+     * once, when it ends.  Use this pattern:
+     *
+     * <pre>
+     *   cds.beginTransaction();
+     *   try {
+     *     ...
+     *     cds.setTransactionSuccessful();
+     *   } finally {
+     *     cds.endTransaction();
+     *   }
+     * </pre>
+     */
+    public void beginTransaction() {
+        if (database == null) {
+            open();
+        }
+        database.beginTransaction();
+    }
+
+    /**
+     * Marks the current transaction as successful, so that it is committed
+     * rather than rolled back by {@link #endTransaction()}.
+     */
+    public void setTransactionSuccessful() {
+        database.setTransactionSuccessful();
+    }
+
+    /**
+     * Ends the current transaction, begun with {@link #beginTransaction()}.
+     */
+    public void endTransaction() {
+        database.endTransaction();
+        if (!database.inTransaction()) {
+            Uri uri = PENDING_CHANGE.get();
+            if (uri != null) {
+                PENDING_CHANGE.set(null);
+                notifyChange(uri);
+            }
+        }
+    }
+
+    // Invalidates cached comments at the specified URI, in this and every other
+    // data source open on the database, and notifies listeners that they
+    // changed, or defers both until the calling thread's transaction is
+    // committed.  Deferred changes for different recipients are merged into
+    // one for the whole collection.
+    private void notifyChange(Uri uri) {
+        if (database.inTransaction()) {
+            Uri pending = PENDING_CHANGE.get();
+            if (pending == null) {
+                PENDING_CHANGE.set(uri);
+            } else if (!pending.equals(uri)) {
+                PENDING_CHANGE.set(CommentContentProvider.CONTENT_URI);
+            }
+            return;
+        }
+        if (checkpointer != null) {
+            checkpointer.onCommit();
+        }
+        compactor.onCommit();
+        shared.invalidateCaches(uri);
+        if (context != null) {
+            context.getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Invalidates cached comments at the specified URI, or all of them if it
+     * does not name a recipient.
+     *
+     * @param uri the URI of the comments that changed, or {@code null}
+     */
+    void invalidateCache(Uri uri) {
+        String recipient = getRecipientForUri(uri);
+        if (recipient == null) {
+            cache.invalidateAll();
+        } else {
+            cache.invalidate(recipient);
+        }
+    }
+
+    private static Uri getUriForRecipient(String recipient) {
+        return Uri.withAppendedPath(CommentContentProvider.CONTENT_URI, recipient);
+    }
+
+    // Returns the recipient named by a comments/<email> URI, or null for any
+    // other URI, which may refer to any recipient's comments.
+    private static String getRecipientForUri(Uri uri) {
+        if (uri == null) {
+            return null;
+        }
+        List<String> segments = uri.getPathSegments();
+        List<String> baseSegments = CommentContentProvider.CONTENT_URI.getPathSegments();
+        if (segments.size() == baseSegments.size() + 1
+                && segments.subList(0, baseSegments.size()).equals(baseSegments)) {
+            return uri.getLastPathSegment();
+        }
+        return null;
+    }
+
+    /**
+     * Configures the cache consulted by {@link #getCommentForRecipient(String)}.
+     * This discards anything already cached.
+     *
+     * @param maxSize the maximum number of recipients whose comments are cached
+     * @param ttlMillis how long, in milliseconds, a cached comment may be used,
+     *        or 0 for no limit
+     */
+    public void configureCache(int maxSize, long ttlMillis) {
+        cache = new CommentCache(maxSize, ttlMillis);
+    }
+
+    /**
+     * Configures which old versions of comments are kept, both by compaction
+     * in the background, which is scheduled shortly after each write, and by
+     * {@link #compactHistory()}.  Each recipient's latest version is always
+     * kept.  Since compaction is shared by every data source open on the same
+     * database, the policy most recently set through any of them applies.
+     * By default, {@value CommentCompactor#DEFAULT_MAX_VERSIONS}
+     * versions are kept for each recipient, regardless of age.
+     *
+     * @param maxVersions the maximum number of versions kept for each
+     *        recipient, including the latest
+     * @param maxAgeMillis the age, in milliseconds, beyond which versions
+     *        other than the latest are removed, or 0 for no limit; a
+     *        recipient's whole history is removed once their comment has been
+     *        deleted for this long
+     * @throws IllegalArgumentException if {@code maxVersions} is not positive
+     *         or {@code maxAgeMillis} is negative
+     */
+    public void configureHistory(int maxVersions, long maxAgeMillis) {
+        CommentCompactor.checkPolicy(maxVersions, maxAgeMillis);
+        this.maxVersions = maxVersions;
+        this.maxAgeMillis = maxAgeMillis;
+        historyConfigured = true;
+        if (compactor != null) {
+            compactor.setPolicy(maxVersions, maxAgeMillis);
+        }
+    }
+
+    /**
+     * Removes the old versions of comments that are not kept under the
+     * policy set by {@link #configureHistory(int, long)}, without waiting for
+     * compaction in the background.  This does not change any current comment.
+     *
+     * @return the number of versions removed
+     */
+    public int compactHistory() {
+        if (database == null) {
+            open();
+        }
+        return COMPACT_STATS.time(new OperationStats.Operation<Integer>() {
+            @Override
+            Integer run() {
+                return compactor.compact();
+            }
+        });
+    }
+
+    /**
+     * Sets whether content is compressed when it is saved, which is off by
+     * default.  Content of at least 256 characters is then compressed with
+     * the dictionary most recently trained by
+     * {@link #trainCompressionDictionary()}, or without one if none has been.
+     * Compressed content is decoded only when it is read, and every cursor
+     * and {@link Comment} returned by this data source gives plain text, as
+     * does the full-text index.  Content already saved is not changed.
+     *
+     * @param enabled whether to compress content
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /**
+     * Trains a dictionary for compressing content on the words that recur
+     * most in recent comments, and uses it for content compressed from now
+     * on.  Content compressed earlier is still decoded with its own dictionary.
+     *
+     * @return the size of the new dictionary, in bytes, or 0 if there were
+     *         too few comments to train one
+     */
+    public int trainCompressionDictionary() {
+        if (database == null) {
+            open();
+        }
+        return TRAIN_STATS.time(new OperationStats.Operation<Integer>() {
+            int numSamples;
+
+            @Override
+            Integer run() {
+                List<String> samples = new ArrayList<String>();
+                Cursor cursor = readers.acquire().query(MySQLiteOpenHelper.VIEW_COMMENTS, null,
+                        null, null, null, null, MySQLiteOpenHelper.COLUMN_VERSION_ID + " DESC",
+                        Integer.toString(TRAINING_SAMPLES));
+                try {
+                    CommentCursorReader reader = createReader(cursor);
+                    Comment comment = new Comment(Comment.NO_ID, null, null);
+                    while (cursor.moveToNext()) {
+                        reader.readInto(cursor, comment);
+                        samples.add(comment.getContentPreview());
+                    }
+                } finally {
+                    cursor.close();
+                }
+                numSamples = samples.size();
+                byte[] dictionary = CommentCodec.train(samples);
+                if (dictionary.length > 0) {
+                    codec.addDictionary(dictionary);
+                }
+                return dictionary.length;
+            }
+
+            @Override
+            int getRows(Integer result) {
+                return numSamples;
+            }
+        });
+    }
+
+    /**
+     * Gets the number of lookups answered by the comment cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getCacheHitCount() {
+        return cache.getHitCount();
+    }
+
+    /**
+     * Gets the number of lookups not answered by the comment cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getCacheMissCount() {
+        return cache.getMissCount();
+    }
+
+    /**
+     * Gets the number of comments removed from the cache to make room for others.
+     *
+     * @return the number of cache evictions
+     */
+    public long getCacheEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    // Executes a statement that changes rows, whose arguments have been bound
+    // by the caller.  Returns the number of rows changed, not counting changes
+    // made by triggers.  Like every use of a
+    // cached statement, this must be called within a transaction.
+    private int executeUpdateDelete(SQLiteStatement statement) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return statement.executeUpdateDelete();
+        }
+        // Before API 11, the count must be read back from the connection.
+        statement.execute();
+        SQLiteStatement changes = statements.get(SELECT_CHANGES);
+        synchronized (changes) {
+            return (int) changes.simpleQueryForLong();
+        }
     }
 
     /**
      * Creates a comment with the specified content for the specified recipient.
      * This both adds the comment to the database and constructs a {@link Comment}
-     * instance.
+     * instance.  If the recipient already has a comment, this becomes its
+     * latest version; the earlier versions remain in the recipient's history.
+     * Content longer than 64K characters is written to its own file, next to
+     * the database, and only its start is kept in the database.
      *
      * @param recipient the email address of the recipient
      * @param content the content of the comment
      * @return a new {@link Comment} instance
      */
-    Comment createComment(String recipient, String content) {
+    public Comment createComment(final String recipient, final String content) {
+        return CREATE_STATS.time(new OperationStats.Operation<Comment>() {
+            @Override
+            Comment run() {
+                Comment comment = appendComment(recipient, content);
+                Tracer.trace(Log.DEBUG, Tracer.CREATE_COMMENT, recipient, getStartNanos());
+                return comment;
+            }
+        });
+    }
+
+    private Comment appendComment(String recipient, String content) {
         if (database == null) {
             open();
         }
-        ContentValues values = new ContentValues();
-        values.put(MySQLiteOpenHelper.COLUMN_RECIPIENT, recipient);
-        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, content);
-        long insertId = database.insert(MySQLiteOpenHelper.TABLE_COMMENTS, null,
-                values);
-        Log.d(TAG, "Inserted comment " + insertId + " into database.");
-        return new Comment(insertId, recipient, content);
+        StoredContent stored = storeContent(content);
+        long recipientId;
+        long versionId;
+        beginTransaction();
+        try {
+            recipientId = getOrCreateRecipientId(recipient);
+            SQLiteStatement append = statements.get(APPEND_VERSION);
+            synchronized (append) {
+                append.bindLong(1, recipientId);
+                append.bindString(2, stored.content);
+                append.bindLong(3, System.currentTimeMillis());
+                bindBody(append, 4, stored, content);
+                versionId = append.executeInsert();
+            }
+            if (stored.deflated != null) {
+                indexContent(versionId, content);
+            }
+            Tracer.trace(Log.VERBOSE, Tracer.INSERT_COMMENT, recipient);
+            notifyChange(getUriForRecipient(recipient));
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+        return stored.bodyName == null ? new Comment(recipientId, recipient, content)
+                : new Comment(recipientId, recipient, stored.content, blobs, stored.bodyName);
+    }
+
+    // The values of the columns in which content is stored.  At most one of
+    // bodyName and deflated is set.
+    private static class StoredContent {
+        String content;
+        String bodyName;
+        byte[] deflated;
+        long dictionaryId = CommentCodec.NO_DICTIONARY;
+    }
+
+    // Chooses how to store content: in a file if it is very long, compressed
+    // if compression is enabled and saves space, or else as plain text.  A
+    // file is written now, so that it is on disk before the row referring to
+    // it is committed.
+    private StoredContent storeContent(String content) {
+        StoredContent stored = new StoredContent();
+        stored.bodyName = writeBody(content);
+        if (stored.bodyName != null) {
+            stored.content = getPreview(content);
+        } else if (compressionEnabled && content.length() >= MIN_COMPRESSED_LENGTH) {
+            long dictionaryId = codec.getLatestDictionaryId();
+            byte[] deflated = CommentCodec.deflate(content, codec.getDictionary(dictionaryId));
+            // The content takes at least one byte per character in UTF-8.
+            if (deflated.length < content.length()) {
+                stored.content = "";
+                stored.deflated = deflated;
+                stored.dictionaryId = dictionaryId;
+            } else {
+                stored.content = content;
+            }
+        } else {
+            stored.content = content;
+        }
+        return stored;
+    }
+
+    // Writes content too long to keep inline to the BlobStore, returning the
+    // name of its file, or null if the content is to be stored inline.  If the
+    // file cannot be written, the content is stored inline after all.  A file
+    // whose row is never committed is removed by the compactor's sweep.
+    private String writeBody(String content) {
+        if (blobs == null || content.length() <= LARGE_CONTENT_LENGTH) {
+            return null;
+        }
+        try {
+            return blobs.write(content);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store comment body in a file; storing it inline.", e);
+            return null;
+        }
+    }
+
+    // Returns the start of the content, without splitting a surrogate pair.
+    private static String getPreview(String content) {
+        int end = PREVIEW_LENGTH;
+        if (Character.isHighSurrogate(content.charAt(end - 1))) {
+            end--;
+        }
+        return content.substring(0, end);
+    }
+
+    // Binds the file name, length, compressed content and dictionary id of
+    // stored content to the index and the three after it.
+    private static void bindBody(SQLiteStatement statement, int index, StoredContent stored,
+            String content) {
+        if (stored.bodyName == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, stored.bodyName);
+        }
+        if (stored.bodyName == null && stored.deflated == null) {
+            statement.bindNull(index + 1);
+            statement.bindNull(index + 2);
+        } else {
+            statement.bindLong(index + 1, content.length());
+            if (stored.deflated == null) {
+                statement.bindNull(index + 2);
+            } else {
+                statement.bindBlob(index + 2, stored.deflated);
+            }
+        }
+        if (stored.dictionaryId == CommentCodec.NO_DICTIONARY) {
+            statement.bindNull(index + 3);
+        } else {
+            statement.bindLong(index + 3, stored.dictionaryId);
+        }
+    }
+
+    // Adds the plain text of a compressed version to the full-text index,
+    // which the triggers cannot do.  This must be called within a transaction.
+    private void indexContent(long id, String content) {
+        SQLiteStatement insert = statements.get(INSERT_FTS);
+        synchronized (insert) {
+            insert.bindLong(1, id);
+            insert.bindString(2, content);
+            insert.executeInsert();
+        }
+    }
+
+    // Returns the id of the row most recently inserted, not counting rows
+    // inserted by triggers.  This must be called within a transaction.
+    private long getLastInsertId() {
+        SQLiteStatement select = statements.get(SELECT_LAST_INSERT_ROWID);
+        synchronized (select) {
+            return select.simpleQueryForLong();
+        }
+    }
+
+    // Returns the id of the recipient's row, adding the row if necessary.
+    // This must be called within a transaction.
+    private long getOrCreateRecipientId(String recipient) {
+        SQLiteStatement insert = statements.get(INSERT_RECIPIENT);
+        long id;
+        synchronized (insert) {
+            insert.bindString(1, recipient);
+            id = insert.executeInsert();
+        }
+        return id != NO_ID ? id : getRecipientId(recipient);
+    }
+
+    // Returns the id of the recipient's row, or NO_ID if there is none.
+    // This must be called within a transaction.
+    private long getRecipientId(String recipient) {
+        SQLiteStatement select = statements.get(SELECT_RECIPIENT_ID);
+        synchronized (select) {
+            select.bindString(1, recipient);
+            try {
+                return select.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return NO_ID;
+            }
+        }
     }
 
     /**
      * Queries the database for all comments for the specified recipient.
+     * The recipient's email address is resolved to its integer id by a
+     * subquery, and the comments are then found through the index on that id.
      *
      * @param recipient the email address of the target of the comment
      * @param projection the names of the columns to retrieve
      * @return a {@code Cursor} pointing to all comments for the recipient
      */
     public Cursor getCursorForCommentForRecipient(String recipient, String[] projection) {
+        return decode(queryCommentForRecipient(recipient, withEncodingColumns(projection)),
+                projection);
+    }
+
+    // Like getCursorForCommentForRecipient(), but without decoding content.
+    private Cursor queryCommentForRecipient(final String recipient, final String[] projection) {
         if (database == null) {
             open();
         }
-        return database.query(MySQLiteOpenHelper.TABLE_COMMENTS,
-                projection, "recipient = \"" + recipient + "\"", null, null, null, null);
+        return QUERY_RECIPIENT_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                return readers.acquire().query(MySQLiteOpenHelper.VIEW_COMMENTS,
+                        projection, RECIPIENT_EMAIL_SELECTION, new String[] { recipient },
+                        null, null, null);
+            }
+        });
+    }
+
+    /**
+     * Queries the database for the comments for all of the specified
+     * recipients at once.  The recipients are looked up through the index on
+     * email addresses with an {@code IN} query, which is split into as few
+     * queries as SQLite's limit on arguments allows.  Recipients without
+     * comments have no rows, and duplicate recipients are ignored.
+     *
+     * @param recipients the email addresses of the recipients
+     * @param projection the names of the columns to retrieve, which should
+     *        include {@link MySQLiteOpenHelper#COLUMN_RECIPIENT} so that rows
+     *        can be matched to recipients
+     * @return a {@code Cursor} referencing the comments, in no particular order
+     */
+    public Cursor getCursorForCommentsForRecipients(final String[] recipients,
+            final String[] projection) {
+        if (database == null) {
+            open();
+        }
+        return QUERY_RECIPIENTS_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                SQLiteDatabase reader = readers.acquire();
+                int numChunks =
+                        Math.max(1, (recipients.length + MAX_ARGUMENTS - 1) / MAX_ARGUMENTS);
+                Cursor[] cursors = new Cursor[numChunks];
+                try {
+                    for (int i = 0; i < numChunks; i++) {
+                        int from = i * MAX_ARGUMENTS;
+                        int to = Math.min(recipients.length, from + MAX_ARGUMENTS);
+                        String[] args = new String[to - from];
+                        System.arraycopy(recipients, from, args, 0, args.length);
+                        cursors[i] = reader.query(MySQLiteOpenHelper.VIEW_COMMENTS,
+                                withEncodingColumns(projection),
+                                getRecipientsSelection(args.length), args, null, null, null);
+                    }
+                } catch (RuntimeException e) {
+                    for (Cursor cursor : cursors) {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                    }
+                    throw e;
+                }
+                return decode(numChunks == 1 ? cursors[0] : new MergeCursor(cursors), projection);
+            }
+        });
+    }
+
+    // Returns a selection matching comments for any of the specified number of
+    // recipients, given as arguments.
+    private static String getRecipientsSelection(int numRecipients) {
+        StringBuilder selection = new StringBuilder(MySQLiteOpenHelper.COLUMN_RECIPIENT_ID)
+                .append(" IN (SELECT ").append(MySQLiteOpenHelper.COLUMN_ID)
+                .append(" FROM ").append(MySQLiteOpenHelper.TABLE_RECIPIENTS)
+                .append(" WHERE ").append(MySQLiteOpenHelper.COLUMN_EMAIL).append(" IN (");
+        for (int i = 0; i < numRecipients; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        return selection.append("))").toString();
     }
 
     /**
@@ -104,74 +920,427 @@ public class CommentsDataSource {
      * @param projection the names of the columns to retrieve
      * @return a {@code Cursor} referencing all comments in the database
      */
-    Cursor getCursorForAllComments(String[] projection) {
+    Cursor getCursorForAllComments(final String[] projection) {
+        if (database == null) {
+            open();
+        }
+        return QUERY_ALL_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                return decode(readers.acquire().query(MySQLiteOpenHelper.VIEW_COMMENTS,
+                        withEncodingColumns(projection), null, null, null, null, null),
+                        projection);
+            }
+        });
+    }
+
+    /**
+     * Queries the database for one page of comments, in increasing order of id.
+     * To scan every comment, start with {@link #FIRST_PAGE}, then pass the id
+     * of the last comment on each page to get the next one, until a page has
+     * fewer than {@code limit} comments.  Since each page is found by seeking
+     * to an id rather than skipping rows, every page is equally fast to fetch.
+     *
+     * @param afterId the id of the last comment on the previous page, or
+     *        {@link #FIRST_PAGE}
+     * @param limit the maximum number of comments on the page
+     * @param projection the names of the columns to retrieve
+     * @return a {@code Cursor} referencing the page of comments
+     */
+    public Cursor getCursorForCommentsPage(long afterId, int limit, String[] projection) {
+        return decode(queryCommentsPage(afterId, limit, withEncodingColumns(projection)),
+                projection);
+    }
+
+    /**
+     * Queries the database for one page of comments, like
+     * {@link #getCursorForCommentsPage(long, int, String[])}, but without
+     * decoding compressed content.  Rows should be read with a reader from
+     * {@link #createReader(Cursor)}.
+     *
+     * @param afterId the id of the last comment on the previous page, or
+     *        {@link #FIRST_PAGE}
+     * @param limit the maximum number of comments on the page
+     * @param projection the names of the columns to retrieve
+     * @return a {@code Cursor} referencing the page of comments
+     */
+    Cursor queryCommentsPage(final long afterId, final int limit, final String[] projection) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        if (database == null) {
+            open();
+        }
+        return QUERY_PAGE_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                return readers.acquire().query(MySQLiteOpenHelper.VIEW_COMMENTS,
+                        projection, AFTER_ID_SELECTION, new String[] { Long.toString(afterId) },
+                        null, null, MySQLiteOpenHelper.COLUMN_ID, Integer.toString(limit));
+            }
+        });
+    }
+
+    /**
+     * Queries the database for the length of each recipient's comment, or of
+     * one recipient's comment, without reading the content into memory.
+     *
+     * @param recipient the email address of the recipient whose comment's
+     *        length is wanted, or {@code null} for every recipient with a comment
+     * @return a {@code Cursor} with the columns
+     *         {@link MySQLiteOpenHelper#COLUMN_RECIPIENT} and
+     *         {@link MySQLiteOpenHelper#COLUMN_CONTENT_LENGTH}
+     */
+    public Cursor getCursorForCommentLengths(final String recipient) {
+        if (database == null) {
+            open();
+        }
+        return QUERY_LENGTHS_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                return readers.acquire().query(MySQLiteOpenHelper.VIEW_COMMENTS,
+                        LENGTHS_PROJECTION, recipient == null ? null : RECIPIENT_EMAIL_SELECTION,
+                        recipient == null ? null : new String[] { recipient }, null, null, null);
+            }
+        });
+    }
+
+    /**
+     * Queries the database for every version of the recipient's comment that
+     * has been kept, latest first.  A version recording that the comment was
+     * deleted has {@code null} {@link MySQLiteOpenHelper#COLUMN_CONTENT}.
+     *
+     * @param recipient the email address of the recipient
+     * @param projection the names of the columns to retrieve, which may
+     *        include {@link MySQLiteOpenHelper#COLUMN_VERSION} and
+     *        {@link MySQLiteOpenHelper#COLUMN_CREATED}
+     * @return a {@code Cursor} referencing the versions
+     */
+    public Cursor getCursorForCommentHistory(final String recipient, final String[] projection) {
+        if (database == null) {
+            open();
+        }
+        return HISTORY_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                return decode(readers.acquire().query(
+                        MySQLiteOpenHelper.VIEW_COMMENT_HISTORY, withEncodingColumns(projection),
+                        RECIPIENT_EMAIL_SELECTION, new String[] { recipient }, null, null,
+                        MySQLiteOpenHelper.COLUMN_VERSION + " DESC"), projection);
+            }
+        });
+    }
+
+    /**
+     * Searches the content of comments using the full-text index, which is
+     * kept up to date as comments are written.  Results are ordered by how
+     * many times the search terms occur in each comment, most first.
+     *
+     * <P>The query uses SQLite's full-text query syntax: for example,
+     * {@code "great job"} matches comments containing both words, and
+     * {@code "improv*"} matches any word starting with "improv".
+     *
+     * @param query the full-text query
+     * @param limit the maximum number of comments to return
+     * @param offset the number of matching comments to skip
+     * @param projection the names of the columns to retrieve, which may
+     *        include {@link MySQLiteOpenHelper#COLUMN_RANK}, or {@code null}
+     *        for all of them
+     * @return a {@code Cursor} referencing the matching comments
+     * @throws IllegalArgumentException if {@code limit} is not positive,
+     *         {@code offset} is negative or the projection contains an
+     *         unknown column
+     */
+    public Cursor searchComments(final String query, final int limit, final int offset,
+            String[] projection) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative: " + offset);
+        }
         if (database == null) {
             open();
         }
-        return database.query(MySQLiteOpenHelper.TABLE_COMMENTS,
-                projection, null, null, null, null, null);
+        final String[] columns = projection == null ? SEARCH_COLUMNS : projection;
+        return SEARCH_STATS.time(new OperationStats.Operation<Cursor>() {
+            @Override
+            Cursor run() {
+                SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+                builder.setTables(SEARCH_TABLES);
+                builder.setProjectionMap(SEARCH_PROJECTION_MAP);
+                return decode(builder.query(readers.acquire(),
+                        withEncodingColumns(columns), SEARCH_SELECTION, new String[] { query },
+                        null, null, SEARCH_ORDER, offset + "," + limit), columns);
+            }
+        });
+    }
+
+    // Returns the projection with the columns needed to decode compressed
+    // content appended, if it includes the content.  The views end with those
+    // columns, so a null projection already does.
+    private static String[] withEncodingColumns(String[] projection) {
+        if (projection == null || !includesContent(projection)) {
+            return projection;
+        }
+        String[] columns = Arrays.copyOf(projection, projection.length + ENCODING_COLUMNS.length);
+        System.arraycopy(ENCODING_COLUMNS, 0, columns, projection.length,
+                ENCODING_COLUMNS.length);
+        return columns;
+    }
+
+    private static boolean includesContent(String[] projection) {
+        return projection == null
+                || Arrays.asList(projection).contains(MySQLiteOpenHelper.COLUMN_CONTENT);
+    }
+
+    // Wraps a cursor queried with withEncodingColumns(projection) so that it
+    // gives decoded content and hides the columns that were added.
+    private Cursor decode(Cursor cursor, String[] projection) {
+        return includesContent(projection) ? new DecodingCursor(cursor, codec) : cursor;
     }
 
     /**
-     * Retrieve all comments from the database.
+     * Retrieve all comments from the database.  Since this holds every comment
+     * in memory at once, large scans should use {@link #iterateComments(boolean)}
+     * or {@link #forEachComment(CommentVisitor, boolean)} instead.
      *
      * @return all comments in the database
      */
     List<Comment> getAllComments() {
         List<Comment> comments = new ArrayList<Comment>();
-
-        Cursor cursor = getCursorForAllComments(null);
-        cursor.moveToFirst();
-        while (!cursor.isAfterLast()) {
-            Comment comment = cursorToComment(cursor);
-            comments.add(comment);
-            cursor.moveToNext();
+        CommentIterator it = iterateComments(false);
+        while (it.hasNext()) {
+            comments.add(it.next());
         }
-        cursor.close();
-
         return comments;
     }
 
     /**
-     * Retrieves the comment associated with the given recipient in the database.
+     * Gets an iterator that reads every comment lazily, in increasing order of id.
+     *
+     * @param reuseComment whether the iterator should return the same
+     *        {@link Comment} instance for every row, rather than allocate one per row
+     * @return an iterator over all comments, which should be closed if it is
+     *         abandoned before the end
+     */
+    public CommentIterator iterateComments(boolean reuseComment) {
+        return iterateComments(reuseComment, CommentIterator.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Gets an iterator that reads every comment lazily, in increasing order of
+     * id, the specified number at a time.
+     *
+     * @param reuseComment whether the iterator should return the same
+     *        {@link Comment} instance for every row, rather than allocate one per row
+     * @param pageSize the number of comments to read from the database at a time
+     * @return an iterator over all comments, which should be closed if it is
+     *         abandoned before the end
+     * @throws IllegalArgumentException if {@code pageSize} is not positive
+     */
+    public CommentIterator iterateComments(boolean reuseComment, int pageSize) {
+        return new CommentIterator(this, reuseComment, pageSize);
+    }
+
+    /**
+     * Visits every comment, in increasing order of id, until the visitor
+     * returns {@code false}.  Rows are read lazily, a page at a time.
+     *
+     * @param visitor the visitor
+     * @param reuseComment whether the same {@link Comment} instance should be
+     *        passed to the visitor for every row, rather than allocate one per row
+     */
+    public void forEachComment(CommentVisitor visitor, boolean reuseComment) {
+        CommentIterator it = iterateComments(reuseComment);
+        try {
+            while (it.hasNext()) {
+                if (!visitor.visit(it.next())) {
+                    break;
+                }
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * Retrieves the comment associated with the given recipient in the database,
+     * taking into account any write still pending in the {@link #getWriteQueue()
+     * write queue}.  Results are cached (see {@link #configureCache(int, long)})
+     * until a write for the recipient is committed through this or any other
+     * data source.  The returned comment must not be modified.
      *
      * @param recipient the email address of the target of the comment
-     * @param projection the names of the columns to retrieve
-     * @return the comment associated with the given recipient in the database
+     * @return the comment associated with the given recipient, or {@code null} if none
      */
-    Comment getCommentForRecipient(String recipient) {
-        Cursor cursor = getCursorForCommentForRecipient(recipient, null);
+    Comment getCommentForRecipient(final String recipient) {
+        return GET_STATS.time(new OperationStats.Operation<Comment>() {
+            @Override
+            Comment run() {
+                Comment comment = readComment(recipient);
+                Tracer.trace(Log.DEBUG, Tracer.GET_COMMENT, recipient, getStartNanos());
+                return comment;
+            }
+        });
+    }
+
+    private Comment readComment(String recipient) {
+        CommentWriteQueue queue = writeQueue;
+        if (queue != null) {
+            Comment pending = queue.getPendingComment(recipient);
+            if (pending != null) {
+                return pending.getContent() == null ? null : pending;
+            }
+        }
+        CommentCache cache = this.cache;
+        CommentCache.Entry entry = cache.get(recipient);
+        if (entry != null) {
+            return entry.comment;
+        }
+        long generation = cache.getGeneration();
+        Cursor cursor = queryCommentForRecipient(recipient, null);
         cursor.moveToFirst();
         Comment comment = null;
         if (!cursor.isAfterLast()) { // Then the given recipient is associated with a comment.
-            comment = cursorToComment(cursor);
+            comment = createReader(cursor).read(cursor);
             cursor.moveToNext();
             assert cursor.isAfterLast(); // Should only have 1 comment associated with a recipient.
         }
         cursor.close();
+        cache.put(recipient, comment, generation);
         return comment;
     }
 
     /**
      * Deletes the comment associated with the given recipient in the database.
+     * The deletion is recorded as the latest version of the comment, so its
+     * earlier versions remain in the recipient's history.
      * 
      * @param recipient the email address of the target of the comment to delete
      * @return {@code true} if the comment was successfully deleted from the database; otherwise
      *         {@code false}
      */
-    boolean deleteCommentForRecipient(String recipient) {
-        int deletedRecordId = database.delete(MySQLiteOpenHelper.TABLE_COMMENTS,
-                MySQLiteOpenHelper.COLUMN_RECIPIENT + " = '" + recipient + "'", null);
-        return deletedRecordId != -1;
+    public boolean deleteCommentForRecipient(final String recipient) {
+        return DELETE_STATS.time(new OperationStats.Operation<Boolean>() {
+            @Override
+            Boolean run() {
+                boolean deleted = deleteComment(recipient);
+                Tracer.trace(Log.DEBUG, Tracer.DELETE_COMMENT, recipient, getStartNanos());
+                return deleted;
+            }
+        });
     }
 
-    // The cursor must have all of the columns in the default order,
-    // which happens if the cursor is created with a null projection.
-    private Comment cursorToComment(Cursor cursor) {
-        Comment comment = new Comment(
-                cursor.getLong(MySQLiteOpenHelper.COLUMN_ID_POS),
-                cursor.getString(MySQLiteOpenHelper.COLUMN_RECIPIENT_POS),
-                cursor.getString(MySQLiteOpenHelper.COLUMN_CONTENT_POS));
-        return comment;
+    private boolean deleteComment(String recipient) {
+        if (database == null) {
+            open();
+        }
+        int count;
+        beginTransaction();
+        try {
+            SQLiteStatement append = statements.get(APPEND_VERSION_FOR_EMAIL);
+            synchronized (append) {
+                append.bindNull(1);
+                append.bindLong(2, System.currentTimeMillis());
+                for (int i = 3; i <= 6; i++) {
+                    append.bindNull(i);
+                }
+                append.bindString(7, recipient);
+                count = executeUpdateDelete(append);
+            }
+            if (count > 0) {
+                notifyChange(getUriForRecipient(recipient));
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+        return count > 0;
+    }
+
+    /**
+     * Replaces the content of the comment associated with the given recipient
+     * by adding a version.  Unlike {@link #createComment(String, String)}, this
+     * does nothing if the recipient has no comment.
+     *
+     * @param recipient the email address of the target of the comment
+     * @param content the new content of the comment
+     * @return {@code true} if a comment was updated; otherwise {@code false}
+     */
+    public boolean updateCommentForRecipient(final String recipient, final String content) {
+        return UPDATE_STATS.time(new OperationStats.Operation<Boolean>() {
+            @Override
+            Boolean run() {
+                return updateComment(recipient, content);
+            }
+        });
+    }
+
+    private boolean updateComment(String recipient, String content) {
+        if (database == null) {
+            open();
+        }
+        StoredContent stored = storeContent(content);
+        int count;
+        beginTransaction();
+        try {
+            SQLiteStatement append = statements.get(APPEND_VERSION_FOR_EMAIL);
+            synchronized (append) {
+                append.bindString(1, stored.content);
+                append.bindLong(2, System.currentTimeMillis());
+                bindBody(append, 3, stored, content);
+                append.bindString(7, recipient);
+                count = executeUpdateDelete(append);
+            }
+            if (count > 0 && stored.deflated != null) {
+                indexContent(getLastInsertId(), content);
+            }
+            if (count > 0) {
+                Tracer.trace(Log.VERBOSE, Tracer.UPDATE_COMMENT, recipient);
+                notifyChange(getUriForRecipient(recipient));
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+        return count > 0;
+    }
+
+    /**
+     * Deletes every comment in the database, by adding a version recording
+     * the deletion of each.
+     *
+     * @return the number of comments deleted
+     */
+    public int deleteAllComments() {
+        return DELETE_ALL_STATS.time(new OperationStats.Operation<Integer>() {
+            @Override
+            Integer run() {
+                return deleteComments();
+            }
+        });
+    }
+
+    private int deleteComments() {
+        if (database == null) {
+            open();
+        }
+        int count;
+        beginTransaction();
+        try {
+            SQLiteStatement append = statements.get(APPEND_DELETIONS);
+            synchronized (append) {
+                append.bindLong(1, System.currentTimeMillis());
+                count = executeUpdateDelete(append);
+            }
+            if (count > 0) {
+                notifyChange(CommentContentProvider.CONTENT_URI);
+            }
+            setTransactionSuccessful();
+        } finally {
+            endTransaction();
+        }
+        return count;
     }
 }
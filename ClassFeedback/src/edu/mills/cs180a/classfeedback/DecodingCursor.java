@@ -0,0 +1,77 @@
+package edu.mills.cs180a.classfeedback;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * A cursor over {@link MySQLiteOpenHelper#VIEW_COMMENTS} or
+ * {@link MySQLiteOpenHelper#VIEW_COMMENT_HISTORY} that gives the plain text of
+ * compressed content in {@link MySQLiteOpenHelper#COLUMN_CONTENT}, so that
+ * clients never see how content is stored.  Each row is decoded only when
+ * its content is read.  The columns needed to decode it,
+ * {@link MySQLiteOpenHelper#COLUMN_CONTENT_DEFLATED} and
+ * {@link MySQLiteOpenHelper#COLUMN_DICTIONARY_ID}, must be the last two of the
+ * underlying cursor, and are hidden.
+ */
+class DecodingCursor extends CursorWrapper {
+    private static final int NUM_HIDDEN_COLUMNS = 2;
+
+    private final Cursor mCursor;
+    private final CommentCodec mCodec;
+    private final int mContentIndex;
+    private final int mDeflatedIndex;
+    private final int mDictionaryIdIndex;
+
+    /**
+     * Wraps a cursor whose projection includes the content and, last, the
+     * columns needed to decode it.
+     *
+     * @param cursor the cursor to wrap
+     * @param codec the codec whose dictionaries are used for decoding
+     */
+    DecodingCursor(Cursor cursor, CommentCodec codec) {
+        super(cursor);
+        mCursor = cursor;
+        mCodec = codec;
+        mContentIndex = cursor.getColumnIndexOrThrow(MySQLiteOpenHelper.COLUMN_CONTENT);
+        mDeflatedIndex = cursor.getColumnCount() - NUM_HIDDEN_COLUMNS;
+        mDictionaryIdIndex = mDeflatedIndex + 1;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (columnIndex == mContentIndex && !mCursor.isNull(mDeflatedIndex)) {
+            return CommentCodec.inflate(mCursor.getBlob(mDeflatedIndex),
+                    mCursor.isNull(mDictionaryIdIndex) ? null
+                            : mCodec.getDictionary(mCursor.getLong(mDictionaryIdIndex)));
+        }
+        return mCursor.getString(columnIndex);
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mDeflatedIndex;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        String[] names = new String[mDeflatedIndex];
+        System.arraycopy(mCursor.getColumnNames(), 0, names, 0, names.length);
+        return names;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        int index = mCursor.getColumnIndex(columnName);
+        return index < mDeflatedIndex ? index : -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index == -1) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+}
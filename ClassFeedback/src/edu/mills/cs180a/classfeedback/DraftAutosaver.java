@@ -0,0 +1,110 @@
+package edu.mills.cs180a.classfeedback;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.TextWatcher;
+import android.widget.TextView;
+
+/**
+ * Watches the text of a comment being edited and keeps it as a draft in a
+ * {@link DraftStore}, so that it survives the process being killed.  Changes
+ * are merged until the text has been left alone for a quiet period, but are
+ * saved at least once per maximum delay while typing continues, so at most
+ * one draft is written per quiet period however fast the user types.
+ *
+ * <P>This must be used on the main thread.  Saving a draft only hands its
+ * text to the {@link DraftStore}, which writes it in the background.
+ */
+public class DraftAutosaver implements TextWatcher {
+    /**
+     * The default quiet period, in milliseconds, after which changes are saved.
+     */
+    public static final long DEFAULT_QUIET_MILLIS = 1000;
+
+    /**
+     * The default maximum delay, in milliseconds, between a change and its
+     * being saved.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+
+    private static final long NO_CHANGE = -1;
+
+    private final DraftStore mDrafts;
+    private final String mRecipient;
+    private final TextView mField;
+    private final long mQuietMillis;
+    private final long mMaxDelayMillis;
+    private final Handler mHandler = new Handler();
+    private final Runnable mSaveTask = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+    // When the earliest unsaved change was made, or NO_CHANGE.
+    private long mFirstChangeTime = NO_CHANGE;
+
+    /**
+     * Constructs an autosaver for the field, which must then be given it with
+     * {@link TextView#addTextChangedListener(TextWatcher)}.
+     *
+     * @param drafts the store in which to keep drafts
+     * @param recipient the email address of the recipient of the comment
+     * @param field the field in which the comment is edited
+     * @param quietMillis how long the text must be unchanged before it is saved
+     * @param maxDelayMillis the longest a change may go unsaved
+     */
+    public DraftAutosaver(DraftStore drafts, String recipient, TextView field,
+            long quietMillis, long maxDelayMillis) {
+        mDrafts = drafts;
+        mRecipient = recipient;
+        mField = field;
+        mQuietMillis = quietMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstChangeTime == NO_CHANGE) {
+            mFirstChangeTime = now;
+        }
+        long delay = Math.min(mQuietMillis, mFirstChangeTime + mMaxDelayMillis - now);
+        mHandler.removeCallbacks(mSaveTask);
+        mHandler.postDelayed(mSaveTask, Math.max(0, delay));
+    }
+
+    /**
+     * Saves any unsaved changes now, as when the activity is paused.
+     */
+    public void flush() {
+        if (mFirstChangeTime != NO_CHANGE) {
+            mHandler.removeCallbacks(mSaveTask);
+            save();
+        }
+    }
+
+    /**
+     * Abandons any unsaved changes and removes the recipient's draft, as when
+     * the comment is saved, deleted or cancelled.
+     */
+    public void discard() {
+        mHandler.removeCallbacks(mSaveTask);
+        mFirstChangeTime = NO_CHANGE;
+        mDrafts.discard(mRecipient);
+    }
+
+    private void save() {
+        mFirstChangeTime = NO_CHANGE;
+        mDrafts.save(mRecipient, mField.getText().toString());
+    }
+}
@@ -0,0 +1,200 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Keeps unsaved drafts of comments, one small file per recipient, apart from
+ * the database of comments, so that typing never writes to it.  Drafts are
+ * written on a single background thread; callers never wait for the disk.
+ *
+ * <P>As in {@link CommentWriteQueue}, writes for the same recipient are merged
+ * by a {@link WriteCoalescer}: only the last draft requested before the
+ * background thread gets to it is written.  {@link #read(String)} sees drafts
+ * that have not yet been written.  Drafts are normally requested through a
+ * {@link DraftAutosaver}, which also limits how often they are.
+ */
+public class DraftStore {
+    private static final String TAG = "DraftStore";
+    private static final String DIRECTORY = "drafts";
+    private static final String SUFFIX = ".txt";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 1024;
+    // The stores in use, by directory, so that each directory is written by
+    // only one thread.
+    private static final Map<File, DraftStore> sInstances = new HashMap<File, DraftStore>();
+
+    private final File mDirectory;
+    // A null value means the recipient's draft is to be removed.
+    private final WriteCoalescer mWrites;
+
+    private DraftStore(File directory) {
+        mDirectory = directory;
+        mWrites = new WriteCoalescer(TAG, new WriteCoalescer.BatchWriter() {
+            @Override
+            public void write(Map<String, String> batch) {
+                writeAll(batch);
+            }
+        });
+    }
+
+    /**
+     * Gets the draft store for this process.
+     *
+     * @param context any context of this application
+     * @return the draft store
+     */
+    public static DraftStore getInstance(Context context) {
+        return getInstance(new File(context.getApplicationContext().getFilesDir(), DIRECTORY));
+    }
+
+    /**
+     * Gets the draft store that keeps its files in the specified directory.
+     * This is intended for testing.
+     *
+     * @param directory the directory, which is created when it is first needed
+     * @return the draft store
+     */
+    public static synchronized DraftStore getInstance(File directory) {
+        DraftStore store = sInstances.get(directory);
+        if (store == null) {
+            store = new DraftStore(directory);
+            sInstances.put(directory, store);
+        }
+        return store;
+    }
+
+    /**
+     * Requests that a draft be kept for the recipient, replacing any earlier
+     * draft.
+     *
+     * @param recipient the email address of the recipient
+     * @param draft the text of the draft
+     */
+    public void save(String recipient, String draft) {
+        if (draft == null) {
+            throw new NullPointerException("draft");
+        }
+        mWrites.put(recipient, draft);
+    }
+
+    /**
+     * Requests that the recipient's draft be removed, as when the comment has
+     * been saved or abandoned.
+     *
+     * @param recipient the email address of the recipient
+     */
+    public void discard(String recipient) {
+        mWrites.put(recipient, null);
+    }
+
+    /**
+     * Gets the draft for the recipient, including one not yet written.  This
+     * reads a small file if no write is pending.
+     *
+     * @param recipient the email address of the recipient
+     * @return the text of the draft, or {@code null} if there is none
+     */
+    public String read(String recipient) {
+        synchronized (mWrites) {
+            if (mWrites.isPending(recipient)) {
+                return mWrites.getPending(recipient);
+            }
+        }
+        File file = getFile(recipient);
+        Reader reader;
+        try {
+            reader = new InputStreamReader(new FileInputStream(file), UTF_8);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            StringBuilder builder = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, length);
+            }
+            return builder.toString();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + file, e);
+            return null;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Blocks until every draft requested before this call has been written or
+     * removed (or has failed and been logged).
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        mWrites.flush();
+    }
+
+    // Runs on the background thread.
+    private void writeAll(Map<String, String> batch) {
+        for (Map.Entry<String, String> draft : batch.entrySet()) {
+            File file = getFile(draft.getKey());
+            try {
+                if (draft.getValue() == null) {
+                    file.delete();
+                } else {
+                    write(file, draft.getValue());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write " + file, e);
+            }
+        }
+    }
+
+    // Replaces the file's contents by renaming a new file over it, so that a
+    // draft is never left half written.  The file is not synced: drafts need
+    // only survive the process being killed, not the device losing power.
+    private void write(File file, String draft) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File temp = new File(file.getPath() + TEMP_SUFFIX);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+        try {
+            writer.write(draft);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp);
+        }
+    }
+
+    private File getFile(String recipient) {
+        try {
+            return new File(mDirectory, URLEncoder.encode(recipient, "UTF-8") + SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);  // UTF-8 is always supported.
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.ImageView;
+
+/**
+ * Loads {@link Person} pictures into {@code ImageView}s.  Each picture is
+ * decoded on a background thread, downsampled so that it is no more than
+ * about twice the size at which it is shown, and kept in a memory cache
+ * holding at most 1/{@link #HEAP_FRACTION} of the maximum heap.  The least
+ * recently used pictures are dropped when the cache is full.
+ *
+ * <P>Methods other than {@link #getInstance(Context)} must be called on the
+ * main thread.  If an {@code ImageView} is reused, for example by a
+ * {@code ListView}, only the picture most recently requested for it is shown.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    /**
+     * The cached pictures may occupy at most the maximum heap size divided by this.
+     */
+    public static final int HEAP_FRACTION = 8;
+
+    private static final int NUM_THREADS = 2;
+    private static ImageLoader sInstance;
+
+    private final Resources mResources;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mExecutor;
+    private final long mMaxBytes;
+    // These are guarded by mCache.
+    private final LinkedHashMap<Long, Bitmap> mCache;
+    private long mBytes;
+    // The picture last requested for each view.  This is only used on the
+    // main thread.
+    private final Map<ImageView, Long> mRequests = new WeakHashMap<ImageView, Long>();
+
+    private ImageLoader(Context context) {
+        mResources = context.getResources();
+        mMaxBytes = Runtime.getRuntime().maxMemory() / HEAP_FRACTION;
+        // An access-ordered map whose eldest entry is the least recently used.
+        mCache = new LinkedHashMap<Long, Bitmap>(16, 0.75f, true);
+        mExecutor = Executors.newFixedThreadPool(NUM_THREADS, new BackgroundThreadFactory(TAG));
+    }
+
+    /**
+     * Gets the image loader for this process.
+     *
+     * @param context any context of this application
+     * @return the image loader
+     */
+    public static synchronized ImageLoader getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    // Identifies a picture decoded for a particular size.
+    private static Long getKey(int imageId, int size) {
+        return Long.valueOf(((long) imageId << 32) | size);
+    }
+
+    /**
+     * Gets a picture from the cache, without loading it.
+     *
+     * @param imageId the resource id of the picture
+     * @param size the size at which the picture is to be shown, in pixels
+     * @return the cached picture, or {@code null} if it is not cached
+     */
+    public Bitmap getCachedBitmap(int imageId, int size) {
+        synchronized (mCache) {
+            return mCache.get(getKey(imageId, size));
+        }
+    }
+
+    /**
+     * Shows a picture in the view.  If the picture is cached, it is shown
+     * immediately.  Otherwise the view is cleared, and the picture is shown
+     * once it has been loaded, unless another picture has been requested for
+     * the view in the meantime.
+     *
+     * @param imageId the resource id of the picture
+     * @param view the view in which to show it
+     * @param size the largest width or height at which the view shows the
+     *        picture, in pixels
+     */
+    public void load(final int imageId, final ImageView view, final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("size must be positive: " + size);
+        }
+        final Long key = getKey(imageId, size);
+        mRequests.put(view, key);
+        Bitmap bitmap = getCachedBitmap(imageId, size);
+        if (bitmap != null) {
+            view.setImageBitmap(bitmap);
+            return;
+        }
+        view.setImageDrawable(null);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(imageId, size);
+                put(key, bitmap);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (key.equals(mRequests.get(view))) {
+                            mRequests.remove(view);
+                            view.setImageBitmap(bitmap);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // Decodes the picture, skipping pixels so that it is at least size pixels
+    // in each dimension but no more than twice that.
+    private Bitmap decode(int imageId, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mResources, imageId, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= size
+                && options.outHeight / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeResource(mResources, imageId, options);
+    }
+
+    private void put(Long key, Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mCache) {
+            Bitmap previous = mCache.put(key, bitmap);
+            if (previous != null) {
+                mBytes -= getByteCount(previous);
+            }
+            mBytes += getByteCount(bitmap);
+            while (mBytes > mMaxBytes && mCache.size() > 1) {
+                Map.Entry<Long, Bitmap> eldest = mCache.entrySet().iterator().next();
+                mBytes -= getByteCount(eldest.getValue());
+                mCache.remove(eldest.getKey());
+            }
+        }
+    }
+
+    // Bitmap.getByteCount() needs API 12.
+    private static long getByteCount(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
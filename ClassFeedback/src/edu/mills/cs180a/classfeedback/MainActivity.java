@@ -5,8 +5,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnTouchListener;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -16,82 +18,183 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 /**
- * An {@code Activity} that displays a list of the names of {@link Person people in CS 180A}.
+ * An {@code Activity} that displays a list of the names of the people in the
+ * {@link Roster}, which is shown once it has been loaded in the background.
  * If a name is clicked on, a {@link CommentActivity} is opened, soliciting a
- * comment for the selected person.
+ * comment for the selected person.  Each row shows the length of the
+ * person's comment, if any, as tracked by a {@link CommentStatusTracker}.
+ * As soon as a row's button is touched, the person's comment starts loading
+ * in the background (see {@link CommentLoader}), so it is usually ready by
+ * the time the {@code CommentActivity} is shown.
  *
  * @author ellen.spertus@gmail.com (Ellen Spertus)
  */
 public class MainActivity extends Activity {
     private LayoutInflater mInflater;
+    private Roster mRoster;
+    private ImageLoader mImageLoader;
+    private int mImageSize;
+    private PersonArrayAdapter mAdapter;
+    private CommentStatusTracker mStatusTracker;
+    private final OnItemClickListener mCommentButtonListener = new OnItemClickListener();
+    private CommentLoader mCommentLoader;
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        // Populate a list from Person.everyone.
-        ArrayAdapter<Person> adapter = new PersonArrayAdapter();
-        ListView listView = (ListView) findViewById(R.id.listView1);
-        listView.setAdapter(adapter);
-
         // Initialize mInflater, which is needed in PersonArrayAdapter.getView().
         mInflater = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+        mImageLoader = ImageLoader.getInstance(this);
+        mImageSize = getResources().getDimensionPixelSize(R.dimen.person_image_size);
+        mCommentLoader = CommentLoader.getInstance(this);
+
+        // Populate a list from the roster once it is loaded.
+        mRoster = Roster.getInstance(this);
+        mRoster.whenLoaded(new Roster.OnLoadedListener() {
+            @Override
+            public void onRosterLoaded(Roster roster) {
+                mAdapter = new PersonArrayAdapter(roster.getEveryone());
+                ListView listView = (ListView) findViewById(R.id.listView1);
+                listView.setAdapter(mAdapter);
+            }
+        });
+
+        // Show which people have comments, updating the rows as comments change.
+        mStatusTracker = new CommentStatusTracker(this, new CommentsDataSourceFactory(),
+                new CommentStatusTracker.OnChangeListener() {
+                    @Override
+                    public void onCommentStatusChanged() {
+                        if (mAdapter != null) {
+                            mAdapter.notifyDataSetChanged();
+                        }
+                    }
+                });
+        mStatusTracker.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        mStatusTracker.stop();
+        super.onDestroy();
     }
 
     @Override
-    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+    protected void onActivityResult(int requestCode, final int resultCode,
+            final Intent data) {
         if(data != null){
-            // Make a toast informing the user of what has occurred.
-            String toastText = "";
-            int recipientId = data.getIntExtra(CommentActivity.RECIPIENT, -1);
-            String recipient = Person.everyone[recipientId].toString();
-            if (resultCode == RESULT_OK) {
-                toastText = getString(R.string.comment_altered_toast);
-                int actionId = data.getIntExtra(CommentActivity.ACTION, -1);
-                String action = getString(actionId);
-                toastText = String.format(toastText, action, recipient);
-            } else if (resultCode == RESULT_CANCELED) {
-                toastText = getString(R.string.comment_canceled_toast);
-                toastText = String.format(toastText, recipient);
-            }
+            // The roster may still be loading if this process was restarted.
+            mRoster.whenLoaded(new Roster.OnLoadedListener() {
+                @Override
+                public void onRosterLoaded(Roster roster) {
+                    int recipientId = data.getIntExtra(CommentActivity.RECIPIENT, -1);
+                    showResultToast(roster.get(recipientId).toString(), resultCode, data);
+                }
+            });
+        }
+    }
 
-            Toast.makeText(this, toastText, Toast.LENGTH_SHORT).show();
+    // Makes a toast informing the user of what has occurred.
+    private void showResultToast(String recipient, int resultCode, Intent data) {
+        String toastText = "";
+        if (resultCode == RESULT_OK) {
+            toastText = getString(R.string.comment_altered_toast);
+            int actionId = data.getIntExtra(CommentActivity.ACTION, -1);
+            String action = getString(actionId);
+            toastText = String.format(toastText, action, recipient);
+        } else if (resultCode == RESULT_CANCELED) {
+            toastText = getString(R.string.comment_canceled_toast);
+            toastText = String.format(toastText, recipient);
         }
+
+        Toast.makeText(this, toastText, Toast.LENGTH_SHORT).show();
     }
 
-    private class OnItemClickListener implements OnClickListener{
-        private int mPosition;
-        OnItemClickListener(int position) {
-            mPosition = position;
+    // A single listener is shared by every row's button, which is tagged with
+    // the row's ViewHolder.  The comment is prefetched when the button is
+    // touched, which is the tap from which its loading time is measured.
+    private class OnItemClickListener implements OnClickListener, OnTouchListener {
+        private final CommentsDataSourceFactory mFactory = new CommentsDataSourceFactory();
+        private long mTouchNanos;
+
+        @Override
+        public boolean onTouch(View view, MotionEvent event) {
+            if (event.getAction() == MotionEvent.ACTION_DOWN) {
+                mTouchNanos = System.nanoTime();
+                int position = ((ViewHolder) view.getTag()).position;
+                mCommentLoader.prefetch(mFactory, mRoster.get(position).getEmail());
+            }
+            return false;  // Let the button handle the touch as usual.
         }
+
         @Override
-        public void onClick(View arg0) {
+        public void onClick(View view) {
+            // A click from the keyboard or trackball follows no touch.
+            long tapNanos = mTouchNanos != 0 ? mTouchNanos : System.nanoTime();
+            mTouchNanos = 0;
+            int position = ((ViewHolder) view.getTag()).position;
             Intent i = new Intent(MainActivity.this, CommentActivity.class);
-            i.putExtra(CommentActivity.RECIPIENT, mPosition);
-            i.putExtra(CommentActivity.CDS_FACTORY, new CommentsDataSourceFactory());
-            startActivityForResult(i, mPosition);
+            i.putExtra(CommentActivity.RECIPIENT, position);
+            i.putExtra(CommentActivity.CDS_FACTORY, mFactory);
+            i.putExtra(CommentActivity.TAP_NANOS, tapNanos);
+            startActivityForResult(i, position);
         }
     }
 
+    // The views of a row, found once when the row is inflated.
+    private static class ViewHolder {
+        ImageView icon;
+        TextView name;
+        TextView status;
+        Button button;
+        int position;
+    }
+
     private class PersonArrayAdapter extends ArrayAdapter<Person> {
-        PersonArrayAdapter() {
-            super(MainActivity.this, R.layout.row, R.id.rowTextView, Person.everyone);
+        PersonArrayAdapter(Person[] people) {
+            super(MainActivity.this, R.layout.row, R.id.rowTextView, people);
+        }
+
+        // The roster never changes while it is shown, so positions are stable ids.
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             // Handling click events from a row inside a ListView gets very strange.
             // Solution found at "http://stackoverflow.com/questions/1821871".
+            ViewHolder holder;
             if (null == convertView) {
                 convertView = mInflater.inflate(R.layout.row, null);
+                holder = new ViewHolder();
+                holder.icon = (ImageView) convertView.findViewById(R.id.rowImageView);
+                holder.name = (TextView) convertView.findViewById(R.id.rowTextView);
+                holder.status = (TextView) convertView.findViewById(R.id.rowStatusView);
+                holder.button = (Button) convertView.findViewById(R.id.rowButtonView);
+                holder.button.setTag(holder);
+                holder.button.setOnClickListener(mCommentButtonListener);
+                holder.button.setOnTouchListener(mCommentButtonListener);
+                convertView.setTag(holder);
+            } else {
+                holder = (ViewHolder) convertView.getTag();
             }
-            Button button = (Button) convertView.findViewById(R.id.rowButtonView);
-            button.setOnClickListener(new OnItemClickListener(position));
+            holder.position = position;
             Person person = getItem(position);
-            ImageView icon = (ImageView) convertView.findViewById(R.id.rowImageView);
-            icon.setImageResource(person.getImageId());
-            TextView name = (TextView) convertView.findViewById(R.id.rowTextView);
-            name.setText(person.getFirstName());
+            mImageLoader.load(person.getImageId(), holder.icon, mImageSize);
+            holder.name.setText(person.getFirstName());
+            int length = mStatusTracker.getLength(person.getEmail());
+            if (length == CommentStatusTracker.NO_COMMENT) {
+                holder.status.setText(R.string.no_comment_status);
+            } else {
+                holder.status.setText(getString(R.string.comment_status, length));
+            }
             return convertView;
         }
     }
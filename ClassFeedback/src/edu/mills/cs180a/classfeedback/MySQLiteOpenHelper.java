@@ -1,10 +1,9 @@
 package edu.mills.cs180a.classfeedback;
 
-import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 /**
  * Creates and upgrades a database for storing {@link Comment}s.
@@ -13,13 +12,69 @@ import android.database.sqlite.SQLiteOpenHelper;
  * @author ellen.spertus@gmail.com (Ellen Spertus)
  */
 public class MySQLiteOpenHelper extends SQLiteOpenHelper {
-    private static final String DATABASE_NAME = "comments.db";
-    private static final int DATABASE_VERSION = 2;
+    static final String DATABASE_NAME = "comments.db";
+    private static final int DATABASE_VERSION = 7;
 
     /**
-     * The name of the table storing comments.
+     * The name of the table mapping recipients' email addresses to integer ids.
      */
-    static final String TABLE_COMMENTS = "comments";
+    static final String TABLE_RECIPIENTS = "recipients";
+
+    /**
+     * The name of the append-only table storing every version of every
+     * comment.  Saving, editing or deleting a comment adds a row with the
+     * recipient's next {@link #COLUMN_VERSION}; a deletion is recorded as a
+     * version whose {@link #COLUMN_CONTENT} is {@code null}.  Rows are only
+     * removed by {@link CommentCompactor}.
+     */
+    static final String TABLE_COMMENT_VERSIONS = "comment_versions";
+
+    /**
+     * The name of the table indexing each recipient's latest row in
+     * {@link #TABLE_COMMENT_VERSIONS}, keyed by {@link #COLUMN_RECIPIENT_ID}.
+     * It is kept up to date by a trigger, so the current comment can be found
+     * without reading older versions.
+     */
+    static final String TABLE_LATEST_VERSIONS = "latest_versions";
+
+    /**
+     * The name of the table of preset dictionaries with which content is
+     * compressed.  Dictionaries are added by training and never changed, so
+     * that each compressed version can always be decoded with the one it
+     * names in {@link #COLUMN_DICTIONARY_ID}.
+     */
+    static final String TABLE_DICTIONARIES = "dictionaries";
+
+    /**
+     * The name of the view of each recipient's current comment, joined with
+     * the email address of its recipient.  Recipients whose latest version is
+     * a deletion do not appear.  Its columns are {@link #COLUMN_ID},
+     * {@link #COLUMN_RECIPIENT}, {@link #COLUMN_CONTENT},
+     * {@link #COLUMN_RECIPIENT_ID}, {@link #COLUMN_BODY_FILE},
+     * {@link #COLUMN_BODY_LENGTH}, {@link #COLUMN_VERSION_ID},
+     * {@link #COLUMN_CONTENT_DEFLATED} and {@link #COLUMN_DICTIONARY_ID},
+     * which are always last.  Its {@link #COLUMN_ID} is the recipient's id,
+     * which, unlike the id of the latest version, does not change when the
+     * comment is edited, so that a comment keeps its place when paging by id.
+     */
+    static final String VIEW_COMMENTS = "comment_details";
+
+    /**
+     * The name of the view of every version of every comment, joined with the
+     * email address of its recipient.  Its columns are those of
+     * {@link #VIEW_COMMENTS} other than {@link #COLUMN_VERSION_ID},
+     * {@link #COLUMN_VERSION} and {@link #COLUMN_CREATED}, with
+     * {@link #COLUMN_CONTENT_DEFLATED} and {@link #COLUMN_DICTIONARY_ID} last.
+     * Its {@link #COLUMN_ID} is the id of the version.
+     */
+    static final String VIEW_COMMENT_HISTORY = "comment_history";
+
+    /**
+     * The name of the full-text index of {@link #COLUMN_CONTENT}.  Each row's
+     * {@code docid} is the {@link #COLUMN_VERSION_ID} of a current comment.  The index
+     * is kept in sync with {@link #TABLE_LATEST_VERSIONS} by triggers.
+     */
+    static final String TABLE_COMMENTS_FTS = "comments_fts";
 
     /**
      * The name of the column containing a unique id.
@@ -27,10 +82,30 @@ public class MySQLiteOpenHelper extends SQLiteOpenHelper {
     static final String COLUMN_ID = "_id";
 
     /**
-     * The name of the column containing the index of the recipient in
-     * {@link Person#everyone}.
+     * The name of the column in {@link #TABLE_RECIPIENTS} containing the
+     * recipient's email address.
+     */
+    static final String COLUMN_EMAIL = "email";
+
+    /**
+     * The name of the column in {@link #TABLE_COMMENT_VERSIONS} and
+     * {@link #TABLE_LATEST_VERSIONS} containing the id of the recipient's row
+     * in {@link #TABLE_RECIPIENTS}.
+     */
+    static final String COLUMN_RECIPIENT_ID = "recipient_id";
+
+    /**
+     * The name of the column in {@link #TABLE_LATEST_VERSIONS} and
+     * {@link #VIEW_COMMENTS} containing the id of the recipient's latest row
+     * in {@link #TABLE_COMMENT_VERSIONS}.
+     */
+    static final String COLUMN_VERSION_ID = "version_id";
+
+    /**
+     * The name of the column in {@link #VIEW_COMMENTS} containing the email
+     * address of the recipient.
      */
-    static final String COLUMN_RECIPIENT = "recipient";
+    public static final String COLUMN_RECIPIENT = "recipient";
 
     /**
      * The name of the column containing the comment's content.
@@ -38,26 +113,195 @@ public class MySQLiteOpenHelper extends SQLiteOpenHelper {
     public static final String COLUMN_CONTENT = "content";
 
     /**
-     * The index of the column containing a unique id.
+     * The name of the column numbering each recipient's versions of their
+     * comment, starting from 1.
+     */
+    public static final String COLUMN_VERSION = "version";
+
+    /**
+     * The name of the column giving the time at which a version of a comment
+     * was saved, in milliseconds since the epoch.
      */
-    static final int COLUMN_ID_POS = 0;
+    public static final String COLUMN_CREATED = "created";
 
     /**
-     * The index of the column containing the comment recipient.
+     * The name of the column in {@link #TABLE_COMMENT_VERSIONS} naming the
+     * file in the {@link BlobStore} that holds the version's whole content,
+     * or {@code null} if {@link #COLUMN_CONTENT} holds all of it.  When the
+     * body is stored externally, {@link #COLUMN_CONTENT} holds its start, so
+     * rows stay small and the full-text index covers the preview.
      */
-    static final int COLUMN_RECIPIENT_POS = 1;
+    static final String COLUMN_BODY_FILE = "body_file";
 
     /**
-     * The index of the column containing the comment's content.
+     * The name of the column in {@link #TABLE_COMMENT_VERSIONS} giving the
+     * length in characters of an externally stored or compressed body, or
+     * {@code null} if the content is stored inline as plain text.
      */
-    static final int COLUMN_CONTENT_POS = 2;
+    static final String COLUMN_BODY_LENGTH = "body_length";
 
-    private static final String DATABASE_CREATE = "create table "
-            + TABLE_COMMENTS + "("
+    /**
+     * The name of the column in {@link #TABLE_COMMENT_VERSIONS} holding the
+     * version's content compressed by {@link CommentCodec}, or {@code null}
+     * if it is not compressed.  {@link #COLUMN_CONTENT} is then empty, and
+     * the full-text index is given the plain text when the version is saved.
+     */
+    static final String COLUMN_CONTENT_DEFLATED = "content_deflated";
+
+    /**
+     * The name of the column in {@link #TABLE_COMMENT_VERSIONS} containing the
+     * id of the row in {@link #TABLE_DICTIONARIES} with which
+     * {@link #COLUMN_CONTENT_DEFLATED} was compressed, or {@code null} if it
+     * was compressed without a dictionary.
+     */
+    static final String COLUMN_DICTIONARY_ID = "dictionary_id";
+
+    /**
+     * The name of the column in {@link #TABLE_DICTIONARIES} holding the
+     * dictionary's bytes.
+     */
+    static final String COLUMN_DICTIONARY = "dictionary";
+
+    /**
+     * The name of the computed column giving the length of a comment's content,
+     * in characters.
+     */
+    public static final String COLUMN_CONTENT_LENGTH = "content_length";
+
+    /**
+     * The name of the computed column in full-text search results giving the
+     * number of times the search terms occur in the comment's content.
+     */
+    public static final String COLUMN_RANK = "rank";
+
+    private static final String RECIPIENTS_CREATE = "create table "
+            + TABLE_RECIPIENTS + "("
+            + COLUMN_ID + " integer primary key autoincrement, "
+            + COLUMN_EMAIL + " text unique not null);";
+
+    private static final String DICTIONARIES_CREATE = "create table "
+            + TABLE_DICTIONARIES + "("
+            + COLUMN_ID + " integer primary key autoincrement, "
+            + COLUMN_DICTIONARY + " blob not null);";
+
+    private static final String COMMENT_VERSIONS_CREATE = "create table "
+            + TABLE_COMMENT_VERSIONS + "("
+            + COLUMN_ID + " integer primary key autoincrement, "
+            + COLUMN_RECIPIENT_ID + " integer not null references "
+            + TABLE_RECIPIENTS + "(" + COLUMN_ID + ") on delete cascade, "
+            + COLUMN_VERSION + " integer not null, "
+            + COLUMN_CONTENT + " text, "
+            + COLUMN_CREATED + " integer not null, "
+            + COLUMN_BODY_FILE + " text, "
+            + COLUMN_BODY_LENGTH + " integer, "
+            + COLUMN_CONTENT_DEFLATED + " blob, "
+            + COLUMN_DICTIONARY_ID + " integer references "
+            + TABLE_DICTIONARIES + "(" + COLUMN_ID + "));";
+
+    // This covers finding a recipient's highest version number, which is
+    // needed to append the next one, and reading their history in order.
+    private static final String COMMENT_VERSIONS_INDEX_CREATE = "create unique index "
+            + TABLE_COMMENT_VERSIONS + "_" + COLUMN_RECIPIENT_ID + "_" + COLUMN_VERSION
+            + "_idx on " + TABLE_COMMENT_VERSIONS + "("
+            + COLUMN_RECIPIENT_ID + ", " + COLUMN_VERSION + ");";
+
+    private static final String LATEST_VERSIONS_CREATE = "create table "
+            + TABLE_LATEST_VERSIONS + "("
+            + COLUMN_RECIPIENT_ID + " integer primary key references "
+            + TABLE_RECIPIENTS + "(" + COLUMN_ID + ") on delete cascade, "
+            + COLUMN_VERSION_ID + " integer not null);";
+
+    // This covers joining a full-text match to the current comment it indexes,
+    // and finding the entry to remove when a version is removed.
+    private static final String LATEST_VERSIONS_INDEX_CREATE = "create unique index "
+            + TABLE_LATEST_VERSIONS + "_" + COLUMN_VERSION_ID + "_idx on "
+            + TABLE_LATEST_VERSIONS + "(" + COLUMN_VERSION_ID + ");";
+
+    // The columns needed to decode compressed content come last in both views,
+    // so that they can be hidden from clients by dropping the last columns.
+    private static final String ENCODING_COLUMNS = TABLE_COMMENT_VERSIONS + "."
+            + COLUMN_CONTENT_DEFLATED + " as " + COLUMN_CONTENT_DEFLATED + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_DICTIONARY_ID + " as " + COLUMN_DICTIONARY_ID;
+
+    // The id and recipient id come from TABLE_LATEST_VERSIONS, so that a lookup
+    // by recipient, or a scan in order of id, goes straight to the latest
+    // version through its primary key.
+    private static final String VIEW_COMMENTS_CREATE = "create view "
+            + VIEW_COMMENTS + " as select "
+            + TABLE_LATEST_VERSIONS + "." + COLUMN_RECIPIENT_ID + " as " + COLUMN_ID + ", "
+            + TABLE_RECIPIENTS + "." + COLUMN_EMAIL + " as " + COLUMN_RECIPIENT + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_CONTENT + " as " + COLUMN_CONTENT + ", "
+            + TABLE_LATEST_VERSIONS + "." + COLUMN_RECIPIENT_ID + " as " + COLUMN_RECIPIENT_ID + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_BODY_FILE + " as " + COLUMN_BODY_FILE + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_BODY_LENGTH + " as " + COLUMN_BODY_LENGTH + ", "
+            + TABLE_LATEST_VERSIONS + "." + COLUMN_VERSION_ID + " as " + COLUMN_VERSION_ID + ", "
+            + ENCODING_COLUMNS
+            + " from " + TABLE_LATEST_VERSIONS + " join " + TABLE_COMMENT_VERSIONS + " on "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_ID + " = "
+            + TABLE_LATEST_VERSIONS + "." + COLUMN_VERSION_ID + " join " + TABLE_RECIPIENTS
+            + " on " + TABLE_RECIPIENTS + "." + COLUMN_ID + " = "
+            + TABLE_LATEST_VERSIONS + "." + COLUMN_RECIPIENT_ID + " where "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_CONTENT + " is not null;";
+
+    private static final String VIEW_COMMENT_HISTORY_CREATE = "create view "
+            + VIEW_COMMENT_HISTORY + " as select "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_ID + " as " + COLUMN_ID + ", "
+            + TABLE_RECIPIENTS + "." + COLUMN_EMAIL + " as " + COLUMN_RECIPIENT + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_CONTENT + " as " + COLUMN_CONTENT + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_RECIPIENT_ID + " as " + COLUMN_RECIPIENT_ID + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_BODY_FILE + " as " + COLUMN_BODY_FILE + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_BODY_LENGTH + " as " + COLUMN_BODY_LENGTH + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_VERSION + " as " + COLUMN_VERSION + ", "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_CREATED + " as " + COLUMN_CREATED + ", "
+            + ENCODING_COLUMNS
+            + " from " + TABLE_COMMENT_VERSIONS + " join " + TABLE_RECIPIENTS + " on "
+            + TABLE_COMMENT_VERSIONS + "." + COLUMN_RECIPIENT_ID + " = "
+            + TABLE_RECIPIENTS + "." + COLUMN_ID + ";";
+
+    // FTS4 needs API 11 and its external content tables API 16, so the index
+    // is an FTS3 table holding its own copy of the content.
+    private static final String COMMENTS_FTS_CREATE = "create virtual table "
+            + TABLE_COMMENTS_FTS + " using fts3(" + COLUMN_CONTENT + ");";
+
+    // Appending a version moves the recipient's entry in TABLE_LATEST_VERSIONS
+    // to it, and replaces the previous version's text in the full-text index.
+    // The text of a compressed version is indexed by CommentsDataSource, since
+    // SQLite cannot decode it.  Removing a version, which the compactor only
+    // does to the latest one along with the rest of the recipient's history,
+    // removes any entries.
+    private static final String[] COMMENT_VERSIONS_TRIGGERS = {
+        TABLE_COMMENT_VERSIONS + "_insert", TABLE_COMMENT_VERSIONS + "_delete"
+    };
+    private static final String[] COMMENT_VERSIONS_TRIGGERS_CREATE = {
+        "create trigger " + COMMENT_VERSIONS_TRIGGERS[0] + " after insert on "
+                + TABLE_COMMENT_VERSIONS + " begin delete from " + TABLE_COMMENTS_FTS
+                + " where docid = (select " + COLUMN_VERSION_ID + " from "
+                + TABLE_LATEST_VERSIONS + " where " + COLUMN_RECIPIENT_ID + " = new."
+                + COLUMN_RECIPIENT_ID + "); insert or replace into " + TABLE_LATEST_VERSIONS
+                + "(" + COLUMN_RECIPIENT_ID + ", " + COLUMN_VERSION_ID + ") values (new."
+                + COLUMN_RECIPIENT_ID + ", new." + COLUMN_ID + "); insert into "
+                + TABLE_COMMENTS_FTS + "(docid, " + COLUMN_CONTENT + ") select new."
+                + COLUMN_ID + ", new." + COLUMN_CONTENT + " where new." + COLUMN_CONTENT
+                + " is not null and new." + COLUMN_CONTENT_DEFLATED + " is null; end;",
+        "create trigger " + COMMENT_VERSIONS_TRIGGERS[1] + " after delete on "
+                + TABLE_COMMENT_VERSIONS + " begin delete from " + TABLE_LATEST_VERSIONS
+                + " where " + COLUMN_VERSION_ID + " = old." + COLUMN_ID + "; delete from "
+                + TABLE_COMMENTS_FTS + " where docid = old." + COLUMN_ID + "; end;",
+    };
+
+    // The table of comments used before version 5, with one row per recipient
+    // that was updated in place.
+    private static final String LEGACY_TABLE_COMMENTS = "comments";
+
+    private static final String LEGACY_COMMENTS_CREATE = "create table "
+            + LEGACY_TABLE_COMMENTS + "("
             + COLUMN_ID  + " integer primary key autoincrement, "
-            + COLUMN_RECIPIENT + " text unique not null, "
+            + COLUMN_RECIPIENT_ID + " integer not null references "
+            + TABLE_RECIPIENTS + "(" + COLUMN_ID + ") on delete cascade, "
             + COLUMN_CONTENT + " text not null);";
 
+    private boolean mWalEnabled;
+
     public MySQLiteOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
@@ -65,15 +309,146 @@ public class MySQLiteOpenHelper extends SQLiteOpenHelper {
     public MySQLiteOpenHelper(Context context, String name) {
         super(context, name, null, DATABASE_VERSION);
     }
+
+    /**
+     * Checks whether the most recently opened writable database is in
+     * write-ahead logging mode, in which readers on other connections are not
+     * blocked by writers.  This requires API 11 and a database stored in a file.
+     *
+     * @return {@code true} if write-ahead logging is enabled
+     */
+    boolean isWriteAheadLoggingEnabled() {
+        return mWalEnabled;
+    }
     
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(DATABASE_CREATE);
+        db.execSQL(RECIPIENTS_CREATE);
+        createCommentVersions(db);
+    }
+
+    private void createCommentVersions(SQLiteDatabase db) {
+        db.execSQL(DICTIONARIES_CREATE);
+        db.execSQL(COMMENT_VERSIONS_CREATE);
+        db.execSQL(COMMENT_VERSIONS_INDEX_CREATE);
+        db.execSQL(LATEST_VERSIONS_CREATE);
+        db.execSQL(LATEST_VERSIONS_INDEX_CREATE);
+        db.execSQL(COMMENTS_FTS_CREATE);
+        createViewsAndTriggers(db);
+    }
+
+    private void createViewsAndTriggers(SQLiteDatabase db) {
+        db.execSQL(VIEW_COMMENTS_CREATE);
+        db.execSQL(VIEW_COMMENT_HISTORY_CREATE);
+        for (String trigger : COMMENT_VERSIONS_TRIGGERS_CREATE) {
+            db.execSQL(trigger);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            db.execSQL("PRAGMA foreign_keys = ON;");
+            mWalEnabled = getDatabaseName() != null
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                    && db.enableWriteAheadLogging();
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COMMENTS);
-        onCreate(db);
+        if (oldVersion < 2) {
+            dropAll(db);
+            onCreate(db);
+            return;
+        }
+        if (oldVersion < 3) {
+            upgradeToVersion3(db);
+        }
+        // Version 5's upgrade creates the tables of the current version.
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+            return;
+        }
+        // Later versions only add tables and columns, after which the views
+        // and triggers are recreated to match.
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMMENTS);
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMMENT_HISTORY);
+        for (String trigger : COMMENT_VERSIONS_TRIGGERS) {
+            db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+        createViewsAndTriggers(db);
+    }
+
+    private void dropAll(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMMENTS);
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMMENT_HISTORY);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COMMENTS_FTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LATEST_VERSIONS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COMMENT_VERSIONS);
+        db.execSQL("DROP TABLE IF EXISTS " + LEGACY_TABLE_COMMENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_RECIPIENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DICTIONARIES);
+    }
+
+    // Version 2 stored the recipient's email address in a text column of the
+    // comments table.  Move the addresses into their own table and have
+    // comments refer to them by id.
+    private void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL(RECIPIENTS_CREATE);
+        db.execSQL("INSERT INTO " + TABLE_RECIPIENTS + " (" + COLUMN_EMAIL + ") SELECT "
+                + COLUMN_RECIPIENT + " FROM " + LEGACY_TABLE_COMMENTS + ";");
+        db.execSQL("ALTER TABLE " + LEGACY_TABLE_COMMENTS + " RENAME TO "
+                + LEGACY_TABLE_COMMENTS + "_v2;");
+        db.execSQL(LEGACY_COMMENTS_CREATE);
+        db.execSQL("INSERT INTO " + LEGACY_TABLE_COMMENTS + " ("
+                + COLUMN_ID + ", " + COLUMN_RECIPIENT_ID + ", " + COLUMN_CONTENT + ") SELECT "
+                + "c." + COLUMN_ID + ", r." + COLUMN_ID + ", c." + COLUMN_CONTENT + " FROM "
+                + LEGACY_TABLE_COMMENTS + "_v2 c JOIN " + TABLE_RECIPIENTS + " r ON r."
+                + COLUMN_EMAIL + " = c." + COLUMN_RECIPIENT + ";");
+        db.execSQL("DROP TABLE " + LEGACY_TABLE_COMMENTS + "_v2;");
+        // The indexes and views of version 3 are replaced by version 5.
+    }
+
+    // Version 4 stored one row per recipient, updated in place.  Make each
+    // comment the first version of its recipient's history, keeping its id,
+    // and rebuild the full-text index, whose triggers were on the old table.
+    private void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("DROP VIEW IF EXISTS " + VIEW_COMMENTS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_COMMENTS_FTS);
+        createCommentVersions(db);
+        db.execSQL("INSERT INTO " + TABLE_COMMENT_VERSIONS + " ("
+                + COLUMN_ID + ", " + COLUMN_RECIPIENT_ID + ", " + COLUMN_VERSION + ", "
+                + COLUMN_CONTENT + ", " + COLUMN_CREATED + ") SELECT "
+                + COLUMN_ID + ", " + COLUMN_RECIPIENT_ID + ", 1, " + COLUMN_CONTENT + ", "
+                + System.currentTimeMillis() + " FROM " + LEGACY_TABLE_COMMENTS + ";");
+        db.execSQL("DROP TABLE " + LEGACY_TABLE_COMMENTS + ";");
+    }
+
+    // Version 5 stored all content inline.  Add the columns referring to
+    // externally stored bodies, which existing rows do not have.
+    private void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_COMMENT_VERSIONS + " ADD COLUMN "
+                + COLUMN_BODY_FILE + " text;");
+        db.execSQL("ALTER TABLE " + TABLE_COMMENT_VERSIONS + " ADD COLUMN "
+                + COLUMN_BODY_LENGTH + " integer;");
+    }
+
+    // Version 6 stored content as plain text.  Add the dictionaries and the
+    // columns for compressed content, which existing rows do not have.
+    private void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL(DICTIONARIES_CREATE);
+        db.execSQL("ALTER TABLE " + TABLE_COMMENT_VERSIONS + " ADD COLUMN "
+                + COLUMN_CONTENT_DEFLATED + " blob;");
+        db.execSQL("ALTER TABLE " + TABLE_COMMENT_VERSIONS + " ADD COLUMN "
+                + COLUMN_DICTIONARY_ID + " integer references "
+                + TABLE_DICTIONARIES + "(" + COLUMN_ID + ");");
     }
 }
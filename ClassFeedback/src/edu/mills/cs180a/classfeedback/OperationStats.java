@@ -0,0 +1,227 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.database.Cursor;
+
+/**
+ * Counts the calls of one operation, such as a {@link CommentsDataSource}
+ * method, and how long they took.  Every instance is registered when it is
+ * created, so that {@link CommentContentProvider#STATS_URI} can report all of
+ * them.  Calls are normally recorded by wrapping them in an {@link Operation}
+ * passed to {@link #time(Operation)}.
+ *
+ * <P>Recording is lock-free: each counter is atomic, and latencies go into a
+ * histogram whose buckets are powers of two nanoseconds, so percentiles are
+ * accurate to within a factor of two.  Because the counters are read
+ * separately, a snapshot taken while calls are in progress may be slightly
+ * inconsistent.
+ */
+class OperationStats {
+    // Bucket i counts latencies with i significant bits, that is, in
+    // [2^(i-1), 2^i) nanoseconds.  Bucket 0 counts latencies of 0.
+    private static final int NUM_BUCKETS = 64;
+    private static final List<OperationStats> sAll = new CopyOnWriteArrayList<OperationStats>();
+
+    private final String mName;
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mRowCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+    private final AtomicLongArray mHistogram = new AtomicLongArray(NUM_BUCKETS);
+
+    private OperationStats(String name) {
+        mName = name;
+    }
+
+    /**
+     * Creates and registers the statistics for an operation.  This should
+     * be called once per operation, when the class performing it is loaded.
+     *
+     * @param name the name of the operation, such as {@code "Class.method"}
+     * @return the statistics
+     */
+    static OperationStats create(String name) {
+        OperationStats stats = new OperationStats(name);
+        sAll.add(stats);
+        return stats;
+    }
+
+    /**
+     * Gets the statistics of every operation, in the order they were created.
+     *
+     * @return every registered instance
+     */
+    static List<OperationStats> getAll() {
+        return sAll;
+    }
+
+    /**
+     * An operation whose calls are recorded by {@link OperationStats#time(Operation)}.
+     * A new instance is made for each call.
+     *
+     * @param <T> the type of the operation's result
+     */
+    abstract static class Operation<T> {
+        private long mStartNanos;
+
+        /**
+         * Performs the operation.
+         *
+         * @return the result
+         */
+        abstract T run();
+
+        /**
+         * Gets the value of {@link System#nanoTime()} when the call began, for
+         * use by {@link #run()}, for example in a {@link Tracer} event.
+         *
+         * @return the start time of the call
+         */
+        final long getStartNanos() {
+            return mStartNanos;
+        }
+
+        /**
+         * Gets the number of rows the call returned or changed.  By default,
+         * this is the count of a {@link Cursor}, which makes it run its query
+         * now so that the query is timed, the value of an {@link Integer},
+         * 1 or 0 for a {@link Boolean}, 0 for {@code null}, and otherwise 1.
+         * A cursor is closed if it cannot be counted.
+         *
+         * @param result the result of {@link #run()}
+         * @return the number of rows
+         */
+        int getRows(T result) {
+            if (result == null) {
+                return 0;
+            } else if (result instanceof Cursor) {
+                Cursor cursor = (Cursor) result;
+                try {
+                    return cursor.getCount();
+                } catch (RuntimeException e) {
+                    cursor.close();
+                    throw e;
+                }
+            } else if (result instanceof Integer) {
+                return (Integer) result;
+            } else if (result instanceof Boolean) {
+                return (Boolean) result ? 1 : 0;
+            }
+            return 1;
+        }
+    }
+
+    /**
+     * Performs an operation and records the call, whether it succeeds or
+     * throws an exception.
+     *
+     * @param operation the operation
+     * @return the result of the operation
+     */
+    <T> T time(Operation<T> operation) {
+        long start = System.nanoTime();
+        operation.mStartNanos = start;
+        try {
+            T result = operation.run();
+            record(start, operation.getRows(result));
+            return result;
+        } catch (RuntimeException e) {
+            recordError(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Records a call that succeeded.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the call began
+     * @param rows the number of rows the call returned or changed
+     */
+    void record(long startNanos, int rows) {
+        mRowCount.addAndGet(rows);
+        recordLatency(startNanos);
+    }
+
+    /**
+     * Records a call that failed by throwing an exception.
+     *
+     * @param startNanos the value of {@link System#nanoTime()} when the call began
+     */
+    void recordError(long startNanos) {
+        mErrorCount.incrementAndGet();
+        recordLatency(startNanos);
+    }
+
+    private void recordLatency(long startNanos) {
+        long nanos = Math.max(0, System.nanoTime() - startNanos);
+        mCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        mHistogram.incrementAndGet(NUM_BUCKETS - Long.numberOfLeadingZeros(nanos));
+        long max = mMaxNanos.get();
+        while (nanos > max && !mMaxNanos.compareAndSet(max, nanos)) {
+            max = mMaxNanos.get();
+        }
+    }
+
+    String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the number of calls, including those that failed.
+     */
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    long getRowCount() {
+        return mRowCount.get();
+    }
+
+    long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    long getMaxNanos() {
+        return mMaxNanos.get();
+    }
+
+    /**
+     * Estimates a percentile of the latency of calls.  The result is the upper
+     * bound of the histogram bucket containing the percentile, but no more than
+     * the maximum latency.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the estimated latency in nanoseconds, or 0 if there were no calls
+     */
+    long getPercentileNanos(double percentile) {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = mHistogram.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                long upperBound = i == 0 ? 0 : (i == NUM_BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upperBound, getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+}
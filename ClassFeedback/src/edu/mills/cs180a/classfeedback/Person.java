@@ -8,7 +8,11 @@ package edu.mills.cs180a.classfeedback;
 public class Person {
     /**
      * Everyone known to be in CS 180A: Mobile Application Development.
+     *
+     * @deprecated Use {@link Roster}, which is read from a resource and supports
+     *             lookup by email address.
      */
+    @Deprecated
     public static final Person[] everyone = {
         new Person("AJ", "Parmidge", "aparmidge@mills.edu", R.drawable.aj),
         new Person("Caroline", "Taymor", "ctaymor@gmail.com", R.drawable.caroline),
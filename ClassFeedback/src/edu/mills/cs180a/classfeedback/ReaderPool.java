@@ -0,0 +1,76 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * A fixed set of read-only connections to a database in write-ahead logging
+ * mode.  In that mode, readers on separate connections see the last committed
+ * state and are not blocked by a writer, even one in a long transaction.
+ *
+ * <P>If the database is not in write-ahead logging mode (for example, if it
+ * is in memory or the platform is older than API 11), the pool hands out the
+ * writable connection itself.
+ */
+class ReaderPool {
+    /**
+     * The default number of read-only connections.
+     */
+    static final int DEFAULT_SIZE = 3;
+
+    private final SQLiteDatabase[] mReaders;
+    private final boolean mOwnsReaders;
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    /**
+     * Opens a pool of read-only connections to the writer's database.
+     *
+     * @param writer the writable connection
+     * @param walEnabled whether the writer is in write-ahead logging mode
+     * @param size the number of read-only connections to open
+     */
+    ReaderPool(SQLiteDatabase writer, boolean walEnabled, int size) {
+        mOwnsReaders = walEnabled;
+        if (walEnabled) {
+            mReaders = new SQLiteDatabase[size];
+            for (int i = 0; i < size; i++) {
+                mReaders[i] = SQLiteDatabase.openDatabase(writer.getPath(), null,
+                        SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+            }
+        } else {
+            mReaders = new SQLiteDatabase[] { writer };
+        }
+    }
+
+    /**
+     * Gets a connection for a query.  Connections are handed out in turn and
+     * may be used by several threads at once.
+     *
+     * @return a connection that may only be used for reading
+     */
+    SQLiteDatabase acquire() {
+        return mReaders[(mNext.getAndIncrement() & Integer.MAX_VALUE) % mReaders.length];
+    }
+
+    /**
+     * Gets every connection in the pool, for work that must be done on each,
+     * such as warming it up.
+     *
+     * @return the connections, which may only be used for reading
+     */
+    SQLiteDatabase[] getAll() {
+        return mReaders.clone();
+    }
+
+    /**
+     * Closes the read-only connections, but not the writable connection.
+     */
+    void close() {
+        if (mOwnsReaders) {
+            for (SQLiteDatabase reader : mReaders) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * The {@link Person people} who may receive comments, read from the raw
+ * resource {@code roster.csv}.  Each line of the file gives a person's first
+ * name, last name, email address and, optionally, the name of a drawable
+ * resource with their picture.  Blank lines and lines starting with
+ * {@code #} are ignored.
+ *
+ * <P>The roster is read once per process, on a background thread, starting
+ * when {@link #getInstance(Context)} is first called.  Use
+ * {@link #whenLoaded(OnLoadedListener)} to be called back on the main thread
+ * once it is ready, or {@link #waitUntilLoaded()} where blocking is
+ * acceptable.  Once loaded, a person can be found by position or by email
+ * address in constant time.  Repeated names are shared rather than copied,
+ * so large rosters take less memory.
+ */
+public class Roster {
+    private static final String TAG = "Roster";
+    private static final String COMMENT_PREFIX = "#";
+    private static final int DEFAULT_IMAGE_ID = R.drawable.ic_launcher;
+    private static Roster sInstance;
+
+    /**
+     * A callback for when the roster has been loaded.
+     */
+    public interface OnLoadedListener {
+        /**
+         * Called on the main thread once the roster has been loaded.
+         *
+         * @param roster the loaded roster
+         */
+        void onRosterLoaded(Roster roster);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // These are written once by the loading thread, before mLoaded is set.
+    private Person[] mPeople;
+    private Map<String, Integer> mPositionsByEmail;
+    // These are guarded by this.
+    private boolean mLoaded;
+    private List<OnLoadedListener> mListeners = new ArrayList<OnLoadedListener>();
+
+    private Roster() {
+    }
+
+    /**
+     * Gets the roster for this process, starting to load it if this is the
+     * first call.
+     *
+     * @param context any context of this application
+     * @return the roster, which may not yet be loaded
+     */
+    public static synchronized Roster getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new Roster();
+            sInstance.startLoading(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private void startLoading(final Context context) {
+        new BackgroundThreadFactory(TAG).newThread(new Runnable() {
+            @Override
+            public void run() {
+                List<Person> people;
+                try {
+                    people = read(context.getResources(), context.getPackageName());
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read the roster.", e);
+                    people = new ArrayList<Person>();
+                }
+                onLoaded(people);
+            }
+        }).start();
+    }
+
+    // Parses the roster file.  Names and image ids are interned through maps
+    // local to this call, so they are released once loading is done.
+    private static List<Person> read(Resources resources, String packageName)
+            throws IOException {
+        Map<String, String> strings = new HashMap<String, String>();
+        Map<String, Integer> imageIds = new HashMap<String, Integer>();
+        List<Person> people = new ArrayList<Person>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                resources.openRawResource(R.raw.roster), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith(COMMENT_PREFIX)) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length < 3) {
+                    Log.w(TAG, "Skipping malformed roster line: " + line);
+                    continue;
+                }
+                int imageId = DEFAULT_IMAGE_ID;
+                if (fields.length > 3 && fields[3].trim().length() > 0) {
+                    String imageName = fields[3].trim();
+                    Integer id = imageIds.get(imageName);
+                    if (id == null) {
+                        id = resources.getIdentifier(imageName, "drawable", packageName);
+                        if (id == 0) {
+                            id = DEFAULT_IMAGE_ID;
+                        }
+                        imageIds.put(imageName, id);
+                    }
+                    imageId = id;
+                }
+                people.add(new Person(intern(strings, fields[0].trim()),
+                        intern(strings, fields[1].trim()), fields[2].trim(), imageId));
+            }
+        } finally {
+            reader.close();
+        }
+        return people;
+    }
+
+    private static String intern(Map<String, String> strings, String s) {
+        String interned = strings.get(s);
+        if (interned == null) {
+            strings.put(s, s);
+            interned = s;
+        }
+        return interned;
+    }
+
+    private void onLoaded(List<Person> people) {
+        Map<String, Integer> positions = new HashMap<String, Integer>(people.size() * 2);
+        for (int i = 0; i < people.size(); i++) {
+            positions.put(people.get(i).getEmail(), i);
+        }
+        final List<OnLoadedListener> listeners;
+        synchronized (this) {
+            mPeople = people.toArray(new Person[people.size()]);
+            mPositionsByEmail = positions;
+            mLoaded = true;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnLoadedListener listener : listeners) {
+                    listener.onRosterLoaded(Roster.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Checks whether the roster has been loaded.
+     *
+     * @return {@code true} if the roster has been loaded
+     */
+    public synchronized boolean isLoaded() {
+        return mLoaded;
+    }
+
+    /**
+     * Calls the listener on the main thread once the roster has been loaded.
+     * If it already has been, the listener is called immediately when this
+     * is called on the main thread, or posted to the main thread otherwise.
+     *
+     * @param listener the listener to call
+     */
+    public void whenLoaded(final OnLoadedListener listener) {
+        synchronized (this) {
+            if (!mLoaded) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            listener.onRosterLoaded(this);
+        } else {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onRosterLoaded(Roster.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * Blocks until the roster has been loaded.  This should not be called on
+     * the main thread unless the roster is known to be loaded or the caller
+     * cannot proceed without it.
+     */
+    public synchronized void waitUntilLoaded() {
+        boolean interrupted = false;
+        while (!mLoaded) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Returns the loaded people, failing if the roster has not been loaded.
+    private Person[] getPeople() {
+        synchronized (this) {
+            if (!mLoaded) {
+                throw new IllegalStateException("The roster has not been loaded.");
+            }
+        }
+        return mPeople;
+    }
+
+    /**
+     * Gets the number of people in the roster.
+     *
+     * @return the number of people
+     * @throws IllegalStateException if the roster has not been loaded
+     */
+    public int size() {
+        return getPeople().length;
+    }
+
+    /**
+     * Gets the person at the specified position in the roster.
+     *
+     * @param position the position, starting from 0
+     * @return the person at the position
+     * @throws IllegalStateException if the roster has not been loaded
+     * @throws IndexOutOfBoundsException if there is no such position
+     */
+    public Person get(int position) {
+        return getPeople()[position];
+    }
+
+    /**
+     * Gets the position of the person with the specified email address.
+     *
+     * @param email the email address
+     * @return the person's position, or -1 if no one has that address
+     * @throws IllegalStateException if the roster has not been loaded
+     */
+    public int indexOf(String email) {
+        getPeople();
+        Integer position = mPositionsByEmail.get(email);
+        return position == null ? -1 : position;
+    }
+
+    /**
+     * Gets the person with the specified email address.
+     *
+     * @param email the email address
+     * @return the person, or {@code null} if no one has that address
+     * @throws IllegalStateException if the roster has not been loaded
+     */
+    public Person getByEmail(String email) {
+        int position = indexOf(email);
+        return position < 0 ? null : mPeople[position];
+    }
+
+    /**
+     * Gets everyone in the roster, in order.  The returned array must not be
+     * modified.
+     *
+     * @return the people in the roster
+     * @throws IllegalStateException if the roster has not been loaded
+     */
+    Person[] getEveryone() {
+        return getPeople();
+    }
+}
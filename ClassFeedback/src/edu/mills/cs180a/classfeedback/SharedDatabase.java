@@ -0,0 +1,242 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+/**
+ * The connections and background threads used by every
+ * {@link CommentsDataSource} open on the same database file in this process:
+ * the writable connection and its compiled statements, the read-only
+ * connections, the compression dictionaries, and the threads that checkpoint
+ * the write-ahead log and compact history.  They are opened by the first
+ * data source to open the file and closed when the last one is closed, so a
+ * data source that is opened briefly costs no threads or connections of its
+ * own.  An in-memory database is never shared.
+ */
+class SharedDatabase {
+    // The open databases stored in files, by path.  This also guards the
+    // reference counts.
+    private static final Map<String, SharedDatabase> sOpen =
+            new HashMap<String, SharedDatabase>();
+
+    private final Context mContext;
+    private final String mPath;
+    private final MySQLiteOpenHelper mHelper;
+    // The data sources open on this database, whose caches must be
+    // invalidated when it is changed underneath them.
+    private final Set<CommentsDataSource> mDataSources =
+            new CopyOnWriteArraySet<CommentsDataSource>();
+    private SQLiteDatabase mDatabase;
+    private StatementCache mStatements;
+    private ReaderPool mReaders;
+    private WalCheckpointer mCheckpointer;
+    private CommentCompactor mCompactor;
+    private CommentCodec mCodec;
+    private int mRefCount;
+
+    private SharedDatabase(Context context, String path, MySQLiteOpenHelper helper) {
+        mContext = context;
+        mPath = path;
+        mHelper = helper;
+    }
+
+    /**
+     * Gets the open database with the specified name, opening it if no data
+     * source in this process has it open.  Each call must be matched by a
+     * call to {@link #release()}.
+     *
+     * @param context the context in which the database is stored
+     * @param name the file name of the database, or {@code null} for a new
+     *        in-memory database
+     * @param blobs the store of externally stored bodies, or {@code null}
+     * @return the open database
+     * @throws SQLException if the database could not be opened
+     */
+    static SharedDatabase acquire(Context context, String name, BlobStore blobs) {
+        if (context == null || name == null) {
+            SharedDatabase db = new SharedDatabase(context, null,
+                    new MySQLiteOpenHelper(context, name));
+            db.open(blobs);
+            return db;
+        }
+        String path = context.getDatabasePath(name).getPath();
+        synchronized (sOpen) {
+            SharedDatabase db = sOpen.get(path);
+            if (db == null) {
+                db = new SharedDatabase(context, path, new MySQLiteOpenHelper(context, name));
+                db.open(blobs);
+                sOpen.put(path, db);
+            }
+            db.mRefCount++;
+            return db;
+        }
+    }
+
+    private void open(BlobStore blobs) {
+        try {
+            mDatabase = mHelper.getWritableDatabase();
+            mStatements = new StatementCache(mDatabase, StatementCache.DEFAULT_MAX_SIZE);
+            boolean walEnabled = mHelper.isWriteAheadLoggingEnabled();
+            mReaders = new ReaderPool(mDatabase, walEnabled, ReaderPool.DEFAULT_SIZE);
+            if (walEnabled) {
+                mCheckpointer = new WalCheckpointer(mDatabase,
+                        WalCheckpointer.DEFAULT_DELAY_MILLIS);
+            }
+            mCompactor = new CommentCompactor(mDatabase, blobs,
+                    CommentCompactor.DEFAULT_DELAY_MILLIS, new Runnable() {
+                        @Override
+                        public void run() {
+                            onCompacted();
+                        }
+                    });
+            mCodec = new CommentCodec(mDatabase);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a reference obtained from
+     * {@link #acquire(Context, String, BlobStore)}, closing the database if
+     * no other data source is using it.
+     */
+    void release() {
+        if (mPath == null) {
+            close();
+            return;
+        }
+        synchronized (sOpen) {
+            if (--mRefCount == 0) {
+                sOpen.remove(mPath);
+                close();
+            }
+        }
+    }
+
+    // Compaction removes no current comment, but changes the history of
+    // comments, so it is announced like any other change to all of them.
+    private void onCompacted() {
+        Uri uri = CommentContentProvider.CONTENT_URI;
+        invalidateCaches(uri);
+        if (mContext != null) {
+            mContext.getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Invalidates the cached comments at the specified URI in every data
+     * source open on this database.  This does not wait for the content
+     * resolver to deliver a change notification, which it may never do for
+     * data sources whose observers are registered with a mock resolver.
+     *
+     * @param uri the URI of the comments that changed
+     */
+    void invalidateCaches(Uri uri) {
+        for (CommentsDataSource cds : mDataSources) {
+            cds.invalidateCache(uri);
+        }
+    }
+
+    /**
+     * Records that a data source is using this database, so that its cache
+     * is invalidated when the database is changed in the background.
+     *
+     * @param cds the data source
+     */
+    void attach(CommentsDataSource cds) {
+        mDataSources.add(cds);
+    }
+
+    /**
+     * Records that a data source is no longer using this database.
+     *
+     * @param cds the data source
+     */
+    void detach(CommentsDataSource cds) {
+        mDataSources.remove(cds);
+    }
+
+    // Any of these may be missing if open() failed.
+    private void close() {
+        if (mCheckpointer != null) {
+            mCheckpointer.close();
+        }
+        if (mCompactor != null) {
+            mCompactor.close();
+        }
+        if (mReaders != null) {
+            mReaders.close();
+        }
+        if (mStatements != null) {
+            mStatements.close();
+        }
+        if (mDatabase != null) {
+            mDatabase.close();
+        }
+        mHelper.close();
+    }
+
+    /**
+     * Gets the writable connection.
+     *
+     * @return the writable connection
+     */
+    SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Gets the compiled statements of the writable connection.
+     *
+     * @return the statement cache
+     */
+    StatementCache getStatements() {
+        return mStatements;
+    }
+
+    /**
+     * Gets the connections for queries.
+     *
+     * @return the reader pool
+     */
+    ReaderPool getReaders() {
+        return mReaders;
+    }
+
+    /**
+     * Gets the checkpointer of the write-ahead log.
+     *
+     * @return the checkpointer, or {@code null} if the database is not in
+     *         write-ahead logging mode
+     */
+    WalCheckpointer getCheckpointer() {
+        return mCheckpointer;
+    }
+
+    /**
+     * Gets the compactor of history.  Its policy is that most recently set
+     * through any data source.
+     *
+     * @return the compactor
+     */
+    CommentCompactor getCompactor() {
+        return mCompactor;
+    }
+
+    /**
+     * Gets the codec for compressed content.
+     *
+     * @return the codec
+     */
+    CommentCodec getCodec() {
+        return mCodec;
+    }
+}
@@ -0,0 +1,91 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * A small least-recently-used cache of compiled {@link SQLiteStatement}s
+ * belonging to a single {@link SQLiteDatabase} connection.  SQLite parses and
+ * plans each statement once, when it is first requested; later requests for
+ * the same SQL reuse the compiled statement with new bound arguments.
+ *
+ * <P>A {@code SQLiteStatement} holds its bound arguments, so callers that may
+ * run on more than one thread must synchronize on the returned statement
+ * while binding and executing it, and must bind every argument each time.
+ * To avoid deadlock, callers must already be in a transaction on the
+ * connection when they lock a statement; otherwise a thread could hold the
+ * statement while waiting for a connection held by another thread's
+ * transaction that is waiting for the same statement.
+ * The cache should be sized to hold every statement shape its owner uses, so
+ * that a statement is never evicted while another thread is executing it.
+ */
+class StatementCache {
+    /**
+     * The default maximum number of statements kept compiled.
+     */
+    static final int DEFAULT_MAX_SIZE = 16;
+
+    private final SQLiteDatabase mDatabase;
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    /**
+     * Constructs an empty cache for the specified connection.
+     *
+     * @param database the connection on which statements are compiled
+     * @param maxSize the maximum number of statements to keep compiled
+     */
+    StatementCache(SQLiteDatabase database, final int maxSize) {
+        mDatabase = database;
+        // An access-ordered map whose eldest entry is the least recently used.
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(maxSize, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > maxSize) {
+                    SQLiteStatement statement = eldest.getValue();
+                    synchronized (statement) {
+                        statement.close();
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets the compiled statement for the specified SQL, compiling it if it
+     * is not already in the cache.  The statement's bindings are cleared.
+     *
+     * @param sql the SQL, with {@code ?} placeholders for arguments
+     * @return the compiled statement
+     */
+    synchronized SQLiteStatement get(String sql) {
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = mDatabase.compileStatement(sql);
+            mStatements.put(sql, statement);
+        } else {
+            // Don't let arguments bound by the last user leak into this one.
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    /**
+     * Releases all compiled statements.  This should be called before the
+     * underlying connection is closed.
+     */
+    synchronized void close() {
+        Iterator<SQLiteStatement> it = mStatements.values().iterator();
+        while (it.hasNext()) {
+            it.next().close();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.PrintWriter;
+
+import android.util.Log;
+
+/**
+ * Records structured trace events in a fixed-size ring buffer, which can be
+ * dumped on demand, for example with
+ * <PRE>adb shell dumpsys activity provider edu.mills.cs180a.classfeedback</PRE>
+ *
+ * <P>Each event has a type, such as {@link #PROVIDER_QUERY}, a priority from
+ * {@link Log}, the hash code of the recipient's email address, if any, and a
+ * duration.  Events are recorded only if their priority is at least the
+ * minimum priority, which is initially the lowest one for which
+ * {@code Log.isLoggable(TAG, priority)} holds, so tracing can be turned on with
+ * <PRE>adb shell setprop log.tag.ClassFeedbackTrace DEBUG</PRE>
+ * Trace calls take only primitives and existing objects, so a disabled
+ * call does no more than compare two integers: it builds no strings and
+ * boxes no values.
+ *
+ * <P>Events are recorded only from within this package.  Outside it, tracing
+ * can only be turned on and off, and the buffer dumped and cleared.
+ */
+public final class Tracer {
+    static final String TAG = "ClassFeedbackTrace";
+
+    // Event types, which index EVENT_NAMES.
+    static final int PROVIDER_QUERY = 0;
+    static final int PROVIDER_INSERT = 1;
+    static final int PROVIDER_BULK_INSERT = 2;
+    static final int PROVIDER_APPLY_BATCH = 3;
+    static final int PROVIDER_UPDATE = 4;
+    static final int PROVIDER_DELETE = 5;
+    static final int CREATE_COMMENT = 6;
+    static final int INSERT_COMMENT = 7;
+    static final int UPDATE_COMMENT = 8;
+    static final int DELETE_COMMENT = 9;
+    static final int GET_COMMENT = 10;
+    static final int SAVE_COMMENT = 11;
+    static final int SHOW_COMMENT = 12;
+    private static final String[] EVENT_NAMES = {
+        "provider.query",
+        "provider.insert",
+        "provider.bulkInsert",
+        "provider.applyBatch",
+        "provider.update",
+        "provider.delete",
+        "cds.createComment",
+        "cds.insertComment",
+        "cds.updateComment",
+        "cds.deleteComment",
+        "cds.getComment",
+        "activity.saveComment",
+        "activity.showComment",
+    };
+
+    /**
+     * The number of events kept in the ring buffer.
+     */
+    public static final int CAPACITY = 512;
+
+    // The priority that disables all tracing.
+    private static final int DISABLED = Log.ASSERT + 1;
+
+    private static volatile int sMinPriority = getLoggablePriority();
+
+    // The ring buffer, as parallel arrays so that recording allocates nothing.
+    // These are guarded by sLock.
+    private static final Object sLock = new Object();
+    private static final long[] sTimesMillis = new long[CAPACITY];
+    private static final int[] sEvents = new int[CAPACITY];
+    private static final int[] sRecipientHashes = new int[CAPACITY];
+    private static final long[] sDurationsNanos = new long[CAPACITY];
+    // The total number of events recorded, of which the last CAPACITY are kept.
+    private static long sCount;
+
+    private Tracer() {
+    }
+
+    private static int getLoggablePriority() {
+        for (int priority = Log.VERBOSE; priority <= Log.ASSERT; priority++) {
+            if (Log.isLoggable(TAG, priority)) {
+                return priority;
+            }
+        }
+        return DISABLED;
+    }
+
+    /**
+     * Sets the minimum priority of the events to record, overriding the
+     * logging property.
+     *
+     * @param priority a priority from {@link Log}, such as {@link Log#DEBUG}
+     */
+    public static void setMinPriority(int priority) {
+        sMinPriority = priority;
+    }
+
+    /**
+     * Checks whether events of the specified priority are recorded.  Callers
+     * need this only to avoid work, such as reading the clock, whose result
+     * would be passed to a trace method.
+     *
+     * @param priority a priority from {@link Log}
+     * @return {@code true} if such events are recorded
+     */
+    public static boolean isEnabled(int priority) {
+        return priority >= sMinPriority;
+    }
+
+    /**
+     * Records an event without a duration, if its priority is enabled.
+     *
+     * @param priority a priority from {@link Log}
+     * @param event the event type, such as {@link #SAVE_COMMENT}
+     * @param recipient the email address of the recipient, or {@code null}
+     */
+    static void trace(int priority, int event, String recipient) {
+        if (priority >= sMinPriority) {
+            record(event, recipient, 0);
+        }
+    }
+
+    /**
+     * Records an event that started at the specified time and ends now, if its
+     * priority is enabled.
+     *
+     * @param priority a priority from {@link Log}
+     * @param event the event type, such as {@link #PROVIDER_QUERY}
+     * @param recipient the email address of the recipient, or {@code null}
+     * @param startNanos the value of {@link System#nanoTime()} when the event began
+     */
+    static void trace(int priority, int event, String recipient, long startNanos) {
+        if (priority >= sMinPriority) {
+            record(event, recipient, System.nanoTime() - startNanos);
+        }
+    }
+
+    private static void record(int event, String recipient, long durationNanos) {
+        long timeMillis = System.currentTimeMillis();
+        int recipientHash = recipient == null ? 0 : recipient.hashCode();
+        synchronized (sLock) {
+            int i = (int) (sCount % CAPACITY);
+            sTimesMillis[i] = timeMillis;
+            sEvents[i] = event;
+            sRecipientHashes[i] = recipientHash;
+            sDurationsNanos[i] = durationNanos;
+            sCount++;
+        }
+    }
+
+    /**
+     * Writes the buffered events, oldest first, one per line.
+     *
+     * @param writer the writer to which to write the events
+     */
+    public static void dump(PrintWriter writer) {
+        synchronized (sLock) {
+            long first = Math.max(0, sCount - CAPACITY);
+            writer.println("Trace events " + first + " to " + sCount
+                    + " (time ms, event, recipient hash, duration us):");
+            for (long n = first; n < sCount; n++) {
+                int i = (int) (n % CAPACITY);
+                writer.println(sTimesMillis[i] + " " + EVENT_NAMES[sEvents[i]] + " "
+                        + Integer.toHexString(sRecipientHashes[i]) + " "
+                        + sDurationsNanos[i] / 1000);
+            }
+        }
+    }
+
+    /**
+     * Discards all buffered events.
+     */
+    public static void clear() {
+        synchronized (sLock) {
+            sCount = 0;
+        }
+    }
+}
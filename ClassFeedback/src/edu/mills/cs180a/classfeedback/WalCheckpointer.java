@@ -0,0 +1,96 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Checkpoints a write-ahead log on a background thread, copying committed
+ * pages back into the database file.  SQLite's automatic checkpoints are
+ * disabled, since they run on whichever thread happens to commit, which is
+ * often one a user is waiting for.  Instead, a checkpoint is scheduled shortly
+ * after each burst of commits.
+ */
+class WalCheckpointer {
+    private static final String TAG = "WalCheckpointer";
+
+    /**
+     * The default delay, in milliseconds, between a commit and the checkpoint.
+     */
+    static final long DEFAULT_DELAY_MILLIS = 2000;
+
+    private final SQLiteDatabase mDatabase;
+    private final long mDelayMillis;
+    private final ScheduledExecutorService mExecutor;
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            checkpoint();
+        }
+    };
+    private boolean mScheduled;
+
+    /**
+     * Disables automatic checkpoints on the database, which must be in
+     * write-ahead logging mode, and starts the background thread.
+     *
+     * @param database the writable connection
+     * @param delayMillis the delay between a commit and the checkpoint
+     */
+    WalCheckpointer(SQLiteDatabase database, long delayMillis) {
+        mDatabase = database;
+        mDelayMillis = delayMillis;
+        runPragma("PRAGMA wal_autocheckpoint = 0");
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new BackgroundThreadFactory(TAG));
+    }
+
+    /**
+     * Records that a transaction was committed, scheduling a checkpoint if
+     * one is not already scheduled.
+     */
+    synchronized void onCommit() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mExecutor.schedule(mCheckpointTask, mDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background thread.  Any scheduled checkpoint is abandoned;
+     * SQLite checkpoints the log itself when the last connection is closed.
+     */
+    void close() {
+        mExecutor.shutdownNow();
+        try {
+            mExecutor.awaitTermination(mDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Runs on the background thread.
+    private void checkpoint() {
+        synchronized (this) {
+            mScheduled = false;
+        }
+        try {
+            runPragma("PRAGMA wal_checkpoint");
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Checkpoint failed.", e);
+        }
+    }
+
+    // PRAGMAs that return a row cannot be run with execSQL().
+    private void runPragma(String pragma) {
+        Cursor cursor = mDatabase.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+}
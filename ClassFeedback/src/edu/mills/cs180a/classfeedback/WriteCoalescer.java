@@ -0,0 +1,153 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Performs writes keyed by recipient on a single background thread, merging
+ * the writes for each recipient: only the last value requested before the
+ * background thread gets to them is written.  The writes waiting when the
+ * background thread wakes up are handed to a {@link BatchWriter} together.
+ * Values that have been requested but not yet written can be read back, so
+ * that readers see their own writes.
+ *
+ * <P>This is the machinery shared by {@link CommentWriteQueue} and
+ * {@link DraftStore}.  A {@code null} value is a write like any other; both
+ * use it to mean that the recipient's data is to be removed.
+ */
+class WriteCoalescer {
+    /**
+     * Writes a batch of merged values, on the background thread.
+     */
+    interface BatchWriter {
+        /**
+         * Writes the values, logging any failure.  Exceptions thrown by this
+         * are not caught.
+         *
+         * @param batch the value to write for each recipient, in the order
+         *        first requested
+         */
+        void write(Map<String, String> batch);
+    }
+
+    private final BatchWriter mWriter;
+    private final ExecutorService mExecutor;
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // The value to write for each recipient, in the order first requested.
+    private Map<String, String> mPending = new LinkedHashMap<String, String>();
+    // The values being written by the background thread, if any.
+    private Map<String, String> mWriting;
+    private boolean mDrainScheduled;
+
+    /**
+     * Constructs a coalescer with its own background thread.
+     *
+     * @param name the name of the background thread
+     * @param writer the writer of batches
+     */
+    WriteCoalescer(String name, BatchWriter writer) {
+        mWriter = writer;
+        mExecutor = Executors.newSingleThreadExecutor(new BackgroundThreadFactory(name));
+    }
+
+    /**
+     * Requests that the value be written for the recipient, replacing any
+     * earlier request for the same recipient.
+     *
+     * @param recipient the email address of the recipient
+     * @param value the value to write, which may be {@code null}
+     */
+    synchronized void put(String recipient, String value) {
+        mPending.put(recipient, value);
+        if (!mDrainScheduled) {
+            mDrainScheduled = true;
+            mExecutor.execute(mDrainTask);
+        }
+    }
+
+    /**
+     * Checks whether a write has been requested for the recipient and not yet
+     * finished.  A caller that goes on to call {@link #getPending(String)}
+     * should hold the lock on this coalescer across both calls.
+     *
+     * @param recipient the email address of the recipient
+     * @return whether a write is pending
+     */
+    synchronized boolean isPending(String recipient) {
+        return mPending.containsKey(recipient)
+                || (mWriting != null && mWriting.containsKey(recipient));
+    }
+
+    /**
+     * Gets the value last requested for the recipient and not yet written.
+     *
+     * @param recipient the email address of the recipient
+     * @return the value, or {@code null} if it is {@code null} or no write is
+     *         pending (see {@link #isPending(String)})
+     */
+    synchronized String getPending(String recipient) {
+        if (mPending.containsKey(recipient)) {
+            return mPending.get(recipient);
+        }
+        return mWriting == null ? null : mWriting.get(recipient);
+    }
+
+    /**
+     * Blocks until every write requested before this call has been made (or
+     * has failed and been logged).
+     *
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    void flush() throws InterruptedException {
+        Future<?> done = mExecutor.submit(mDrainTask);
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Flushes pending writes and stops the background thread.  Requests
+     * made after this is called are rejected.
+     */
+    void close() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mExecutor.shutdown();
+    }
+
+    // Runs on the background thread.
+    private void drain() {
+        Map<String, String> batch;
+        synchronized (this) {
+            mDrainScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            batch = mPending;
+            mWriting = batch;
+            mPending = new LinkedHashMap<String, String>();
+        }
+        try {
+            mWriter.write(batch);
+        } finally {
+            synchronized (this) {
+                mWriting = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects the measurements made by {@link DataLayerBenchmark} or
+ * {@link StatementCacheBenchmark} and writes them as CSV and JSON, so that
+ * runs from different releases can be compared by scripts.
+ */
+class BenchmarkResults {
+    private static final String CSV_HEADER = "operation,backend,tableSize,threads,"
+            + "operations,totalNanos,nanosPerOp,opsPerSecond,p50Nanos,p99Nanos";
+
+    private final List<Measurement> mMeasurements = new ArrayList<Measurement>();
+
+    /**
+     * The result of timing one operation against one configuration.
+     */
+    static class Measurement {
+        final String operation;
+        final String backend;
+        final int tableSize;
+        final int threads;
+        final int operations;
+        final long totalNanos;
+        final long p50Nanos;
+        final long p99Nanos;
+
+        /**
+         * Constructs a measurement.
+         *
+         * @param latencies the time taken by each operation, which is sorted by
+         *        this method, or {@code null} if only the total time is known
+         */
+        Measurement(String operation, String backend, int tableSize, int threads,
+                int operations, long totalNanos, long[] latencies) {
+            this.operation = operation;
+            this.backend = backend;
+            this.tableSize = tableSize;
+            this.threads = threads;
+            this.operations = operations;
+            this.totalNanos = totalNanos;
+            if (latencies == null || latencies.length == 0) {
+                p50Nanos = -1;
+                p99Nanos = -1;
+            } else {
+                Arrays.sort(latencies);
+                p50Nanos = latencies[(latencies.length - 1) / 2];
+                p99Nanos = latencies[(int) ((latencies.length - 1) * 0.99)];
+            }
+        }
+
+        long getNanosPerOp() {
+            return operations == 0 ? 0 : totalNanos / operations;
+        }
+
+        long getOpsPerSecond() {
+            return totalNanos == 0 ? 0 : operations * 1000000000L / totalNanos;
+        }
+    }
+
+    void add(Measurement measurement) {
+        mMeasurements.add(measurement);
+        System.out.println(toCsv(measurement));
+    }
+
+    /**
+     * Writes the measurements to {@code results.csv} and {@code results.json}
+     * in the specified directory, creating it if necessary.
+     *
+     * @param dir the directory in which to write the results
+     * @throws IOException if the files cannot be written
+     */
+    void write(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        PrintWriter csv = new PrintWriter(new FileWriter(new File(dir, "results.csv")));
+        try {
+            csv.println(CSV_HEADER);
+            for (Measurement m : mMeasurements) {
+                csv.println(toCsv(m));
+            }
+        } finally {
+            csv.close();
+        }
+        PrintWriter json = new PrintWriter(new FileWriter(new File(dir, "results.json")));
+        try {
+            json.println("[");
+            for (int i = 0; i < mMeasurements.size(); i++) {
+                json.print(toJson(mMeasurements.get(i)));
+                json.println(i < mMeasurements.size() - 1 ? "," : "");
+            }
+            json.println("]");
+        } finally {
+            json.close();
+        }
+    }
+
+    // Operation and backend names are chosen by the benchmarks and never
+    // need quoting or escaping.
+    private static String toCsv(Measurement m) {
+        return m.operation + "," + m.backend + "," + m.tableSize + "," + m.threads + ","
+                + m.operations + "," + m.totalNanos + "," + m.getNanosPerOp() + ","
+                + m.getOpsPerSecond() + "," + m.p50Nanos + "," + m.p99Nanos;
+    }
+
+    private static String toJson(Measurement m) {
+        return "  {\"operation\": \"" + m.operation + "\", \"backend\": \"" + m.backend
+                + "\", \"tableSize\": " + m.tableSize + ", \"threads\": " + m.threads
+                + ", \"operations\": " + m.operations + ", \"totalNanos\": " + m.totalNanos
+                + ", \"nanosPerOp\": " + m.getNanosPerOp()
+                + ", \"opsPerSecond\": " + m.getOpsPerSecond()
+                + ", \"p50Nanos\": " + m.p50Nanos + ", \"p99Nanos\": " + m.p99Nanos + "}";
+    }
+}
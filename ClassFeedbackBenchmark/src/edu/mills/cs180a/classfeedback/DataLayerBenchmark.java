@@ -0,0 +1,273 @@
+package edu.mills.cs180a.classfeedback;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Benchmarks {@link CommentsDataSource} and {@link CommentContentProvider} on
+ * a desktop JVM.  Robolectric supplies the Android framework, including a
+ * real SQLite, so no device or emulator is needed.
+ *
+ * <P>For each backend, table size and thread count, this times inserting a
+ * comment for every recipient, looking up each recipient's comment, scanning
+ * every comment, querying the provider for each recipient and deleting each
+ * comment.  Per-key operations are divided among the threads.  The
+ * configurations are read from these system properties:
+ * <UL>
+ * <LI>{@code benchmark.backends}: a comma-separated list of backends, each
+ *     {@code file} or {@code memory} (default {@code file,memory})
+ * <LI>{@code benchmark.sizes}: a comma-separated list of table sizes
+ *     (default {@code 100,1000,10000})
+ * <LI>{@code benchmark.threads}: a comma-separated list of thread counts
+ *     (default {@code 1,4})
+ * <LI>{@code benchmark.output}: the directory in which to write
+ *     {@code results.csv} and {@code results.json} (default {@code results})
+ * </UL>
+ *
+ * <P>To run it from Eclipse, define a user library named "Robolectric"
+ * containing Robolectric 3.0 and its dependencies, then run this class as a
+ * JUnit test with the properties given as VM arguments, for example
+ * {@code -Dbenchmark.sizes=1000 -Dbenchmark.threads=1,2,4}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "../ClassFeedback/AndroidManifest.xml", sdk = 19)
+public class DataLayerBenchmark {
+    private static final String BENCHMARK_DATABASE_NAME = "benchmark.db";
+    private static final String[] PROJECTION = { MySQLiteOpenHelper.COLUMN_CONTENT };
+    private static final int WARM_UP_SIZE = 100;
+    private final BenchmarkResults mResults = new BenchmarkResults();
+
+    /**
+     * Constructs data sources for one of the backends being compared.
+     */
+    private static class Backend implements CommentsDataSourceAbstractFactory {
+        private static final long serialVersionUID = 1L;
+        final String name;
+        private final String mDatabaseName;
+
+        Backend(String name, String databaseName) {
+            this.name = name;
+            mDatabaseName = databaseName;
+        }
+
+        public CommentsDataSource createCommentsDataSource(Context context) {
+            if (mDatabaseName != null) {
+                context.deleteDatabase(mDatabaseName);
+            }
+            return new CommentsDataSource(context, mDatabaseName);
+        }
+    }
+
+    // An operation on the comment for the recipient with the specified index.
+    private interface KeyedOperation {
+        void run(int key) throws Exception;
+    }
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        List<Backend> backends = new ArrayList<Backend>();
+        for (String name : getProperty("benchmark.backends", "file,memory").split(",")) {
+            backends.add(getBackend(name.trim()));
+        }
+        int[] sizes = getIntsProperty("benchmark.sizes", "100,1000,10000");
+        int[] threadCounts = getIntsProperty("benchmark.threads", "1,4");
+
+        // Give the JIT a chance to compile the hot paths before anything is recorded.
+        runConfiguration(backends.get(0), WARM_UP_SIZE, 1, false);
+        for (Backend backend : backends) {
+            for (int size : sizes) {
+                for (int threads : threadCounts) {
+                    runConfiguration(backend, size, threads, true);
+                }
+            }
+        }
+        mResults.write(new File(getProperty("benchmark.output", "results")));
+    }
+
+    private static Backend getBackend(String name) {
+        if ("file".equals(name)) {
+            return new Backend(name, BENCHMARK_DATABASE_NAME);
+        }
+        if ("memory".equals(name)) {
+            return new Backend(name, null);
+        }
+        throw new IllegalArgumentException("Unknown backend: " + name);
+    }
+
+    private void runConfiguration(Backend backend, int size, int threads, boolean record)
+            throws Exception {
+        Context context = RuntimeEnvironment.application;
+        final CommentsDataSource cds = backend.createCommentsDataSource(context);
+        cds.open();
+        try {
+            time("insert", backend, size, threads, record, new KeyedOperation() {
+                public void run(int key) {
+                    cds.createComment(getEmail(key), getContent(key));
+                }
+            });
+            time("lookup", backend, size, threads, record, new KeyedOperation() {
+                public void run(int key) {
+                    Cursor cursor = cds.getCursorForCommentForRecipient(getEmail(key), PROJECTION);
+                    try {
+                        if (!cursor.moveToFirst()) {
+                            throw new AssertionError("No comment for " + getEmail(key));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+            timeScan(cds, backend, size, threads, record);
+            time("delete", backend, size, threads, record, new KeyedOperation() {
+                public void run(int key) {
+                    cds.deleteCommentForRecipient(getEmail(key));
+                }
+            });
+        } finally {
+            cds.close();
+        }
+        timeProviderQuery(context, backend, size, threads, record);
+    }
+
+    // Each thread scans the whole table, so that concurrent readers contend.
+    private void timeScan(final CommentsDataSource cds, Backend backend, final int size,
+            int threads, boolean record) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < threads; i++) {
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    final int[] count = new int[1];
+                    cds.forEachComment(new CommentVisitor() {
+                        public boolean visit(Comment comment) {
+                            count[0]++;
+                            return true;
+                        }
+                    }, true);
+                    if (count[0] != size) {
+                        throw new AssertionError("Scanned " + count[0] + " of " + size);
+                    }
+                    return null;
+                }
+            });
+        }
+        long totalNanos = runAll(tasks);
+        if (record) {
+            mResults.add(new BenchmarkResults.Measurement("scan", backend.name, size, threads,
+                    size * threads, totalNanos, null));
+        }
+    }
+
+    // The provider gets its own data source from the backend, which it fills
+    // through bulkInsert() before it is queried.
+    private void timeProviderQuery(Context context, Backend backend, int size, int threads,
+            boolean record) throws Exception {
+        final CommentContentProvider provider = new CommentContentProvider();
+        provider.setDataSourceFactory(backend);
+        provider.attachInfo(context, null);
+        try {
+            ContentValues[] valuesArray = new ContentValues[size];
+            for (int i = 0; i < size; i++) {
+                valuesArray[i] = new ContentValues();
+                valuesArray[i].put(MySQLiteOpenHelper.COLUMN_RECIPIENT, getEmail(i));
+                valuesArray[i].put(MySQLiteOpenHelper.COLUMN_CONTENT, getContent(i));
+            }
+            provider.bulkInsert(CommentContentProvider.CONTENT_URI, valuesArray);
+            time("providerQuery", backend, size, threads, record, new KeyedOperation() {
+                public void run(int key) {
+                    Uri uri = Uri.withAppendedPath(CommentContentProvider.CONTENT_URI,
+                            getEmail(key));
+                    Cursor cursor = provider.query(uri, PROJECTION, null, null, null);
+                    try {
+                        if (!cursor.moveToFirst()) {
+                            throw new AssertionError("No comment for " + getEmail(key));
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            });
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    // Performs the operation once for each key, dividing the keys among the
+    // threads, and records the elapsed time and the latency of each operation.
+    private void time(String operation, Backend backend, int size, final int threads,
+            boolean record, final KeyedOperation op) throws Exception {
+        final long[] latencies = new long[size];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < threads; i++) {
+            final int firstKey = i;
+            tasks.add(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int key = firstKey; key < latencies.length; key += threads) {
+                        long start = System.nanoTime();
+                        op.run(key);
+                        latencies[key] = System.nanoTime() - start;
+                    }
+                    return null;
+                }
+            });
+        }
+        long totalNanos = runAll(tasks);
+        if (record) {
+            mResults.add(new BenchmarkResults.Measurement(operation, backend.name, size,
+                    threads, size, totalNanos, latencies));
+        }
+    }
+
+    // Runs the tasks on their own threads, starting them together, and returns
+    // the time until the last one finished.
+    private static long runAll(List<Callable<Void>> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        try {
+            long start = System.nanoTime();
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            long totalNanos = System.nanoTime() - start;
+            for (Future<Void> future : futures) {
+                future.get();  // rethrows any failure
+            }
+            return totalNanos;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String getEmail(int key) {
+        return "student" + key + "@mills.edu";
+    }
+
+    private static String getContent(int key) {
+        return "Comment number " + key + " about this student's work this semester.";
+    }
+
+    private static String getProperty(String name, String defaultValue) {
+        return System.getProperty(name, defaultValue);
+    }
+
+    private static int[] getIntsProperty(String name, String defaultValue) {
+        String[] values = getProperty(name, defaultValue).split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = Integer.parseInt(values[i].trim());
+        }
+        return ints;
+    }
+}
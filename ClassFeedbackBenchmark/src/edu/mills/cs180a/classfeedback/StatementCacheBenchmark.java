@@ -0,0 +1,144 @@
+package edu.mills.cs180a.classfeedback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Benchmarks {@link StatementCache} against the old way of reading and
+ * writing a recipient's comment, which pasted the email address into the SQL
+ * of a version 2 database, so that SQLite parsed and planned every statement.
+ * Both ways use the same in-memory table.
+ *
+ * <P>The results are written to {@code results.csv} and {@code results.json}
+ * in the {@code statements} subdirectory of the directory given by the
+ * {@code benchmark.output} system property (default {@code results}).  See
+ * {@link DataLayerBenchmark} for how to run this.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = "../ClassFeedback/AndroidManifest.xml", sdk = 19)
+public class StatementCacheBenchmark {
+    private static final String BACKEND = "memory";
+    private static final int NUM_RECIPIENTS = 200;
+    private static final int NUM_ROUNDS = 10;
+    private static final String LEGACY_CREATE = "create table comments("
+            + "_id integer primary key autoincrement, "
+            + "recipient text unique not null, "
+            + "content text not null);";
+    private static final String SELECT_CONTENT =
+            "SELECT content FROM comments WHERE recipient = ?";
+    private static final String UPDATE_CONTENT =
+            "UPDATE comments SET content = ? WHERE recipient = ?";
+    // JUnit constructs this class for each test, so the results are shared.
+    private static final BenchmarkResults RESULTS = new BenchmarkResults();
+    private SQLiteDatabase mDatabase;
+    private StatementCache mStatements;
+
+    @Before
+    public void setUp() {
+        mDatabase = SQLiteDatabase.create(null);
+        mDatabase.execSQL(LEGACY_CREATE);
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            mDatabase.execSQL("INSERT INTO comments (recipient, content) VALUES ('"
+                    + getEmail(i) + "', 'comment " + i + "')");
+        }
+        mStatements = new StatementCache(mDatabase, StatementCache.DEFAULT_MAX_SIZE);
+    }
+
+    @After
+    public void tearDown() {
+        mStatements.close();
+        mDatabase.close();
+    }
+
+    @AfterClass
+    public static void writeResults() throws Exception {
+        RESULTS.write(new File(System.getProperty("benchmark.output", "results"),
+                "statements"));
+    }
+
+    @Test
+    public void benchmarkLookup() {
+        // Warm up both paths before timing them.
+        runLegacyLookups();
+        runCachedLookups();
+
+        long legacyNanos = 0;
+        long cachedNanos = 0;
+        for (int round = 0; round < NUM_ROUNDS; round++) {
+            long start = System.nanoTime();
+            runLegacyLookups();
+            legacyNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            runCachedLookups();
+            cachedNanos += System.nanoTime() - start;
+        }
+        record("legacyLookup", legacyNanos);
+        record("cachedLookup", cachedNanos);
+        // Every lookup used the statement compiled for the first.
+        assertSame(mStatements.get(SELECT_CONTENT), mStatements.get(SELECT_CONTENT));
+    }
+
+    @Test
+    public void benchmarkUpdate() {
+        int numWrites = NUM_RECIPIENTS * NUM_ROUNDS;
+        long start = System.nanoTime();
+        for (int i = 0; i < numWrites; i++) {
+            mDatabase.execSQL("UPDATE comments SET content = 'edit " + i
+                    + "' WHERE recipient = '" + getEmail(i % NUM_RECIPIENTS) + "'");
+        }
+        record("legacyUpdate", System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < numWrites; i++) {
+            SQLiteStatement update = mStatements.get(UPDATE_CONTENT);
+            update.bindString(1, "edit " + i);
+            update.bindString(2, getEmail(i % NUM_RECIPIENTS));
+            assertEquals(1, update.executeUpdateDelete());
+        }
+        record("cachedUpdate", System.nanoTime() - start);
+        assertSame(mStatements.get(UPDATE_CONTENT), mStatements.get(UPDATE_CONTENT));
+    }
+
+    // Each lookup has different SQL text, so SQLite must parse and plan each one.
+    private void runLegacyLookups() {
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            SQLiteStatement select = mDatabase.compileStatement(
+                    "SELECT content FROM comments WHERE recipient = '" + getEmail(i) + "'");
+            try {
+                assertEquals("comment " + i, select.simpleQueryForString());
+            } finally {
+                select.close();
+            }
+        }
+    }
+
+    // Each lookup binds its argument to the one compiled statement.
+    private void runCachedLookups() {
+        for (int i = 0; i < NUM_RECIPIENTS; i++) {
+            SQLiteStatement select = mStatements.get(SELECT_CONTENT);
+            select.bindString(1, getEmail(i));
+            assertEquals("comment " + i, select.simpleQueryForString());
+        }
+    }
+
+    private void record(String operation, long totalNanos) {
+        RESULTS.add(new BenchmarkResults.Measurement(operation, BACKEND, NUM_RECIPIENTS, 1,
+                NUM_RECIPIENTS * NUM_ROUNDS, totalNanos, null));
+    }
+
+    private static String getEmail(int i) {
+        return "student" + i + "@mills.edu";
+    }
+}
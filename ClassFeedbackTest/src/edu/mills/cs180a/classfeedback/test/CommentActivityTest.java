@@ -3,9 +3,12 @@
  */
 package edu.mills.cs180a.classfeedback.test;
 
+import java.io.File;
+
 import android.content.Intent;
 import android.database.Cursor;
-import android.graphics.drawable.Drawable;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.test.ActivityInstrumentationTestCase2;
 import android.test.UiThreadTest;
 import android.widget.Button;
@@ -13,20 +16,36 @@ import android.widget.EditText;
 import android.widget.ImageView;
 import edu.mills.cs180a.classfeedback.CommentActivity;
 import edu.mills.cs180a.classfeedback.CommentsDataSource;
+import edu.mills.cs180a.classfeedback.CommentsDataSourceAbstractFactory;
+import edu.mills.cs180a.classfeedback.DraftStore;
+import edu.mills.cs180a.classfeedback.ImageLoader;
 import edu.mills.cs180a.classfeedback.MySQLiteOpenHelper;
 import edu.mills.cs180a.classfeedback.Person;
 import edu.mills.cs180a.classfeedback.R;
+import edu.mills.cs180a.classfeedback.Roster;
 
 public class CommentActivityTest extends ActivityInstrumentationTestCase2<CommentActivity> {
-    private static final int RECIPIENT_INDEX = 0;  // Use person 0 in Person.everyone.
-    private static final Person RECIPIENT = Person.everyone[RECIPIENT_INDEX];
+    private static final int RECIPIENT_INDEX = 0;  // Use person 0 in the roster.
     private static final String COMMENT_TEXT = "lorem ipsum";
+    private static final long IMAGE_LOAD_TIMEOUT_MS = 5000;
+    private static final long IMAGE_LOAD_POLL_MS = 10;
+    private static final long COMMENT_LOAD_TIMEOUT_MS = 5000;
+    private static final long COMMENT_LOAD_POLL_MS = 10;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+    private static final long CLOSE_POLL_MS = 10;
+    private static final long FINISH_TIMEOUT_MS = 5000;
+    private static final long FINISH_POLL_MS = 10;
+    private static final int NUM_LAUNCHES = 5;
+    private static final String DRAFT_DIRECTORY = "test-drafts";
     private CommentActivity mActivity;
+    private Person mRecipient;
     private ImageView mImageView;
     private EditText mCommentField;
     private Button mSaveButton;
     private Button mCancelButton;
     private CommentsDataSource mCds;
+    private File mDraftDirectory;
+    private DraftStore mDrafts;
     private static final String TAG = "CommentActivityTest";
 
     public CommentActivityTest() {
@@ -37,19 +56,55 @@ public class CommentActivityTest extends ActivityInstrumentationTestCase2<Commen
     protected void setUp() throws Exception {
         super.setUp();
 
-        Intent i = new Intent();
+        // Keep drafts apart from those of the application under test, and
+        // start with none, even if an earlier test left some.
+        mDraftDirectory = new File(getInstrumentation().getTargetContext().getCacheDir(),
+                DRAFT_DIRECTORY);
+        mDrafts = DraftStore.getInstance(mDraftDirectory);
+        mDrafts.flush();
+        File[] drafts = mDraftDirectory.listFiles();
+        if (drafts != null) {
+            for (File draft : drafts) {
+                draft.delete();
+            }
+        }
         setActivityInitialTouchMode(true);
-        i.putExtra(CommentActivity.RECIPIENT, RECIPIENT_INDEX);
-        i.putExtra(CommentActivity.CDS_FACTORY, new MockCommentsDataSourceFactory());
-        setActivityIntent(i);
+        setActivityIntent(createIntent());
         // This must occur after setting the touch mode and intent.
         mActivity = getActivity();
+        Roster roster = Roster.getInstance(mActivity);
+        roster.waitUntilLoaded();
+        mRecipient = roster.get(RECIPIENT_INDEX);
 
         // Initialize references to views.
         mImageView = (ImageView) mActivity.findViewById(R.id.commentImageView);
         mCommentField = (EditText) mActivity.findViewById(R.id.commentEditText);
         mSaveButton = (Button) mActivity.findViewById(R.id.saveCommentButton);
         mCancelButton = (Button) mActivity.findViewById(R.id.cancelCommentButton);
+        waitForComment(mActivity);
+    }
+
+    private Intent createIntent() {
+        return createIntent(new MockCommentsDataSourceFactory());
+    }
+
+    private Intent createIntent(CommentsDataSourceAbstractFactory factory) {
+        Intent i = new Intent();
+        i.putExtra(CommentActivity.RECIPIENT, RECIPIENT_INDEX);
+        i.putExtra(CommentActivity.CDS_FACTORY, factory);
+        i.putExtra(CommentActivity.DRAFT_DIRECTORY, mDraftDirectory.getPath());
+        return i;
+    }
+
+    // The comment is loaded in the background, after which it can be edited.
+    private void waitForComment(CommentActivity activity) throws InterruptedException {
+        EditText commentField = (EditText) activity.findViewById(R.id.commentEditText);
+        long deadline = System.currentTimeMillis() + COMMENT_LOAD_TIMEOUT_MS;
+        while (!commentField.isEnabled() && System.currentTimeMillis() < deadline) {
+            getInstrumentation().waitForIdleSync();
+            Thread.sleep(COMMENT_LOAD_POLL_MS);
+        }
+        assertTrue(commentField.isEnabled());
     }
 
     @Override
@@ -60,14 +115,19 @@ public class CommentActivityTest extends ActivityInstrumentationTestCase2<Commen
     }
 
     // Make sure the imageView contains the picture of the right person.
-    public void testImageView() {
-        Drawable expectedDrawable =
-                mActivity.getResources().getDrawable(RECIPIENT.getImageId());
-        // Drawables cannot be compared directly.   Instead, compare their
-        // constant state, which will be the same for any instances
-        // created from the same resource.
-        assertEquals(expectedDrawable.getConstantState(),
-                mImageView.getDrawable().getConstantState());
+    public void testImageView() throws InterruptedException {
+        // The picture is loaded in the background, then cached.
+        int size = mActivity.getResources().getDimensionPixelSize(R.dimen.person_image_size);
+        ImageLoader loader = ImageLoader.getInstance(mActivity);
+        long deadline = System.currentTimeMillis() + IMAGE_LOAD_TIMEOUT_MS;
+        while (!(mImageView.getDrawable() instanceof BitmapDrawable)
+                && System.currentTimeMillis() < deadline) {
+            getInstrumentation().waitForIdleSync();
+            Thread.sleep(IMAGE_LOAD_POLL_MS);
+        }
+        Bitmap expectedBitmap = loader.getCachedBitmap(mRecipient.getImageId(), size);
+        assertNotNull(expectedBitmap);
+        assertSame(expectedBitmap, ((BitmapDrawable) mImageView.getDrawable()).getBitmap());
     }
 
     // Make sure that the comment field is initially empty.
@@ -84,21 +144,77 @@ public class CommentActivityTest extends ActivityInstrumentationTestCase2<Commen
     }
 
     @UiThreadTest
-    public void testCommentEntry() {
+    public void testCommentEntry() throws InterruptedException {
         mCds = MockCommentsDataSource.create(null);  // context argument ignored
         String[] desiredColumns = { MySQLiteOpenHelper.COLUMN_CONTENT };
-        assertEquals(0, getNumCommentsForRecipient(RECIPIENT));
+        assertEquals(0, getNumCommentsForRecipient(mRecipient));
 
         // Simulate entering a comment.
         mCommentField.setText(COMMENT_TEXT);
         mSaveButton.performClick();
+        // The comment is saved in the background.
+        mCds.getWriteQueue().flush();
 
         Cursor cursor = mCds.getCursorForCommentForRecipient(
-                RECIPIENT.getEmail(), desiredColumns);
+                mRecipient.getEmail(), desiredColumns);
         assertEquals(1, cursor.getCount());
         assertTrue(cursor.moveToFirst());
         assertEquals(COMMENT_TEXT, cursor.getString(0));
         assertFalse(cursor.moveToNext());
         cursor.close();
     }
+
+    @UiThreadTest
+    public void testDraftKeptUntilCancel() throws InterruptedException {
+        mCommentField.setText(COMMENT_TEXT);
+        // Pausing keeps the draft without waiting for the quiet period.
+        getInstrumentation().callActivityOnPause(mActivity);
+        mDrafts.flush();
+        assertEquals(COMMENT_TEXT, mDrafts.read(mRecipient.getEmail()));
+
+        mCancelButton.performClick();
+        mDrafts.flush();
+        assertNull(mDrafts.read(mRecipient.getEmail()));
+    }
+
+    // Make sure that each activity closes the data source it was given when
+    // it is destroyed, however many times it is started.
+    public void testDataSourceClosedOnDestroy() throws InterruptedException {
+        MockCommentsDataSource cds = MockCommentsDataSource.create(null);
+        for (int i = 0; i < NUM_LAUNCHES; i++) {
+            int numCloses = cds.getNumCloses();
+            final CommentActivity activity = launchActivityWithIntent(
+                    mActivity.getPackageName(), CommentActivity.class, createIntent());
+            waitForComment(activity);
+            getInstrumentation().runOnMainSync(new Runnable() {
+                @Override
+                public void run() {
+                    activity.finish();
+                }
+            });
+            // The data source is closed in the background.
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+            while (cds.getNumCloses() == numCloses && System.currentTimeMillis() < deadline) {
+                getInstrumentation().waitForIdleSync();
+                Thread.sleep(CLOSE_POLL_MS);
+            }
+            assertEquals(numCloses + 1, cds.getNumCloses());
+        }
+    }
+
+    // Make sure that an activity whose data source cannot be opened closes
+    // it and finishes, instead of crashing or leaving the user unable to edit.
+    public void testFinishedWhenLoadFails() throws InterruptedException {
+        int numCloses = FailingCommentsDataSourceFactory.getNumCloses();
+        CommentActivity activity = launchActivityWithIntent(mActivity.getPackageName(),
+                CommentActivity.class, createIntent(new FailingCommentsDataSourceFactory()));
+        long deadline = System.currentTimeMillis() + FINISH_TIMEOUT_MS;
+        while (!activity.isFinishing() && System.currentTimeMillis() < deadline) {
+            getInstrumentation().waitForIdleSync();
+            Thread.sleep(FINISH_POLL_MS);
+        }
+        assertTrue(activity.isFinishing());
+        assertFalse(activity.findViewById(R.id.commentEditText).isEnabled());
+        assertEquals(numCloses + 1, FailingCommentsDataSourceFactory.getNumCloses());
+    }
 }
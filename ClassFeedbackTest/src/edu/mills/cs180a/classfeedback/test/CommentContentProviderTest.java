@@ -1,15 +1,40 @@
 package edu.mills.cs180a.classfeedback.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentValues;
+import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 import edu.mills.cs180a.classfeedback.CommentContentProvider;
+import edu.mills.cs180a.classfeedback.CommentsDataSource;
+import edu.mills.cs180a.classfeedback.CommentsDataSourceAbstractFactory;
+import edu.mills.cs180a.classfeedback.MySQLiteOpenHelper;
 
 // This creates an IsolatedContext and does not affect the production store.
 public class CommentContentProviderTest extends ProviderTestCase2<CommentContentProvider> {
     private MockContentResolver mResolver;
     private static final String EMAIL = "foo@bar.com";
+    private static final String CONTENT = "lorem ipsum";
+    private static final int NUM_QUERIES = 10000;
+    private static final int NUM_BULK_COMMENTS = 1000;
+    private static final int PAGE_SIZE = 64;
+    private static final long IMPORT_TIMEOUT_MS = 5000;
+    private static final long IMPORT_POLL_MS = 10;
+    private static final int LARGE_CONTENT_LENGTH = 100000;
+    private static final int PREVIEW_LENGTH = 1024;
+    private static final int NUM_TRAINING_COMMENTS = 10;
+    private static final int COMPRESSED_CONTENT_LENGTH = 1000;
+    private static final long WARM_UP_TIMEOUT_MS = 5000;
+    private static final long WARM_UP_BLOCK_MS = 200;
     
     public CommentContentProviderTest() {
         super(CommentContentProvider.class, CommentContentProvider.AUTHORITY);
@@ -29,4 +54,546 @@ public class CommentContentProviderTest extends ProviderTestCase2<CommentContent
         assertEquals(0, cursor.getCount());
         cursor.close();
     }
+
+    public void testInsertThenQuery() {
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_RECIPIENT, EMAIL);
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+        Uri uri = mResolver.insert(CommentContentProvider.CONTENT_URI, values);
+        assertEquals(Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL), uri);
+
+        String[] projection = { "content" };  // desired columns
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(CONTENT, cursor.getString(0));
+        cursor.close();
+
+        assertEquals(1, mResolver.delete(uri, null, null));
+        cursor = mResolver.query(uri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testBulkInsert() {
+        ContentValues[] valuesArray = new ContentValues[NUM_BULK_COMMENTS];
+        for (int i = 0; i < valuesArray.length; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_RECIPIENT, i + EMAIL);
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + i);
+        }
+        assertEquals(NUM_BULK_COMMENTS,
+                mResolver.bulkInsert(CommentContentProvider.CONTENT_URI, valuesArray));
+        Cursor cursor = mResolver.query(CommentContentProvider.CONTENT_URI, null, null, null, null);
+        assertEquals(NUM_BULK_COMMENTS, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testPagination() {
+        ContentValues[] valuesArray = new ContentValues[NUM_BULK_COMMENTS];
+        for (int i = 0; i < valuesArray.length; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_RECIPIENT, i + EMAIL);
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + i);
+        }
+        mResolver.bulkInsert(CommentContentProvider.CONTENT_URI, valuesArray);
+
+        String[] projection = { "_id", "content" };  // desired columns
+        long afterId = 0;
+        int numPages = 0;
+        int numComments = 0;
+        while (true) {
+            Uri uri = CommentContentProvider.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_LIMIT,
+                            Integer.toString(PAGE_SIZE))
+                    .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_AFTER,
+                            Long.toString(afterId))
+                    .build();
+            Cursor cursor = mResolver.query(uri, projection, null, null, null);
+            assertTrue(cursor.getCount() <= PAGE_SIZE);
+            while (cursor.moveToNext()) {
+                assertTrue(cursor.getLong(0) > afterId);
+                afterId = cursor.getLong(0);
+                numComments++;
+            }
+            int count = cursor.getCount();
+            cursor.close();
+            if (count == 0) {
+                break;
+            }
+            numPages++;
+        }
+        assertEquals(NUM_BULK_COMMENTS, numComments);
+        assertEquals((NUM_BULK_COMMENTS + PAGE_SIZE - 1) / PAGE_SIZE, numPages);
+    }
+
+    public void testSearch() {
+        String[] contents = {
+            "great job on the project",
+            "good job, great job",
+            "see me after class",
+        };
+        ContentValues[] valuesArray = new ContentValues[contents.length];
+        for (int i = 0; i < valuesArray.length; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_RECIPIENT, i + EMAIL);
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_CONTENT, contents[i]);
+        }
+        mResolver.bulkInsert(CommentContentProvider.CONTENT_URI, valuesArray);
+
+        // The comment mentioning "job" twice ranks first.
+        String[] projection = { "content", MySQLiteOpenHelper.COLUMN_RANK };
+        Cursor cursor = mResolver.query(getSearchUri("job", 1, 0), projection,
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(contents[1], cursor.getString(0));
+        assertEquals(2, cursor.getInt(1));
+        cursor.close();
+
+        cursor = mResolver.query(getSearchUri("job", 1, 1), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(contents[0], cursor.getString(0));
+        cursor.close();
+
+        // The index follows updates and deletions.
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + 0 + EMAIL);
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, "see me after class");
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        assertEquals(1, mResolver.delete(
+                Uri.parse(CommentContentProvider.CONTENT_URI + "/" + 1 + EMAIL), null, null));
+        cursor = mResolver.query(getSearchUri("job", 10, 0), projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mResolver.query(getSearchUri("class", 10, 0), projection, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testStats() {
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+        mResolver.insert(uri, values);
+        mResolver.query(uri, null, null, null, null).close();
+
+        // The statistics are kept for the life of the process, so other tests
+        // may have added to them.
+        Cursor cursor = mResolver.query(CommentContentProvider.STATS_URI, null, null, null, null);
+        int operationIndex = cursor.getColumnIndexOrThrow("operation");
+        int countIndex = cursor.getColumnIndexOrThrow("count");
+        int rowsIndex = cursor.getColumnIndexOrThrow("rows");
+        int maxIndex = cursor.getColumnIndexOrThrow("max_nanos");
+        int p50Index = cursor.getColumnIndexOrThrow("p50_nanos");
+        int numFound = 0;
+        while (cursor.moveToNext()) {
+            String operation = cursor.getString(operationIndex);
+            if (operation.equals("CommentContentProvider.insert")
+                    || operation.equals("CommentContentProvider.query")
+                    || operation.equals("CommentsDataSource.createComment")) {
+                numFound++;
+                assertTrue(cursor.getLong(countIndex) >= 1);
+                assertTrue(cursor.getLong(rowsIndex) >= 1);
+                assertTrue(cursor.getLong(p50Index) <= cursor.getLong(maxIndex));
+            }
+        }
+        cursor.close();
+        assertEquals(3, numFound);
+    }
+
+    public void testBatchQuery() {
+        ContentValues[] valuesArray = new ContentValues[NUM_BULK_COMMENTS];
+        for (int i = 0; i < valuesArray.length; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_RECIPIENT, i + EMAIL);
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + i);
+        }
+        mResolver.bulkInsert(CommentContentProvider.CONTENT_URI, valuesArray);
+
+        // Ask for two recipients with comments and one without.
+        Uri uri = CommentContentProvider.BATCH_URI.buildUpon()
+                .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_RECIPIENT, 0 + EMAIL)
+                .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_RECIPIENT, 1 + EMAIL)
+                .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_RECIPIENT, EMAIL)
+                .build();
+        String[] projection = { "recipient", "content" };  // desired columns
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        assertEquals(2, cursor.getCount());
+        while (cursor.moveToNext()) {
+            String recipient = cursor.getString(0);
+            assertTrue(recipient.equals(0 + EMAIL) || recipient.equals(1 + EMAIL));
+            assertEquals(CONTENT + recipient.charAt(0), cursor.getString(1));
+        }
+        cursor.close();
+    }
+
+    public void testIdUnchangedByEdit() {
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+        mResolver.insert(uri, values);
+        String[] projection = { "_id", "content" };  // desired columns
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long id = cursor.getLong(0);
+        cursor.close();
+
+        // Editing a comment must not move it past a page already read.
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + 2);
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        cursor = mResolver.query(CommentContentProvider.CONTENT_URI, projection, null, null,
+                null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(id, cursor.getLong(0));
+        assertEquals(CONTENT + 2, cursor.getString(1));
+        cursor.close();
+    }
+
+    public void testHistory() {
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+        mResolver.insert(uri, values);
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + 2);
+        assertEquals(1, mResolver.update(uri, values, null, null));
+        assertEquals(1, mResolver.delete(uri, null, null));
+
+        // Every version is kept, latest first, with the deletion recorded.
+        Uri historyUri = Uri.withAppendedPath(CommentContentProvider.HISTORY_URI, EMAIL);
+        String[] projection = { "content", MySQLiteOpenHelper.COLUMN_VERSION };
+        Cursor cursor = mResolver.query(historyUri, projection, null, null, null);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        assertEquals(3, cursor.getInt(1));
+        assertTrue(cursor.moveToNext());
+        assertEquals(CONTENT + 2, cursor.getString(0));
+        assertTrue(cursor.moveToNext());
+        assertEquals(CONTENT, cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+
+        // Compaction keeps only the latest versions.
+        CommentsDataSource cds = CommentsDataSource.create(getMockContext());
+        cds.configureHistory(2, 0);
+        assertEquals(1, cds.compactHistory());
+        cds.close();
+        cursor = mResolver.query(historyUri, projection, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals(CONTENT + 2, cursor.getString(0));
+        cursor.close();
+    }
+
+    public void testExportThenImport() throws IOException, InterruptedException {
+        ContentValues[] valuesArray = new ContentValues[NUM_BULK_COMMENTS];
+        for (int i = 0; i < valuesArray.length; i++) {
+            valuesArray[i] = new ContentValues();
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_RECIPIENT, i + EMAIL);
+            valuesArray[i].put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + "\n" + i);
+        }
+        mResolver.bulkInsert(CommentContentProvider.CONTENT_URI, valuesArray);
+
+        // Export every comment, one per line.
+        ByteArrayOutputStream exported =
+                readFully(mResolver.openInputStream(CommentContentProvider.EXPORT_URI));
+        String[] lines = exported.toString("UTF-8").split("\n");
+        assertEquals(NUM_BULK_COMMENTS, lines.length);
+
+        // Import them again after deleting them.
+        mResolver.delete(CommentContentProvider.CONTENT_URI, null, null);
+        OutputStream out = mResolver.openOutputStream(CommentContentProvider.EXPORT_URI);
+        exported.writeTo(out);
+        out.close();
+
+        // The comments are saved in the background.
+        String[] projection = { "content" };  // desired columns
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + (NUM_BULK_COMMENTS - 1)
+                + EMAIL);
+        long deadline = System.currentTimeMillis() + IMPORT_TIMEOUT_MS;
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        while (cursor.getCount() == 0 && System.currentTimeMillis() < deadline) {
+            cursor.close();
+            Thread.sleep(IMPORT_POLL_MS);
+            cursor = mResolver.query(uri, projection, null, null, null);
+        }
+        assertTrue(cursor.moveToFirst());
+        assertEquals(CONTENT + "\n" + (NUM_BULK_COMMENTS - 1), cursor.getString(0));
+        cursor.close();
+        cursor = mResolver.query(CommentContentProvider.CONTENT_URI, projection, null, null, null);
+        assertEquals(NUM_BULK_COMMENTS, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testLargeCommentBody() throws IOException {
+        StringBuilder builder = new StringBuilder(LARGE_CONTENT_LENGTH);
+        while (builder.length() < LARGE_CONTENT_LENGTH) {
+            builder.append(CONTENT).append(' ').append(builder.length()).append('\n');
+        }
+        String content = builder.toString();
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_RECIPIENT, EMAIL);
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, content);
+        Uri uri = mResolver.insert(CommentContentProvider.CONTENT_URI, values);
+
+        // Queries return only the start of the content.
+        String[] projection = { "content" };  // desired columns
+        for (Uri queryUri : new Uri[] { uri, CommentContentProvider.CONTENT_URI }) {
+            Cursor cursor = mResolver.query(queryUri, projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(content.substring(0, PREVIEW_LENGTH), cursor.getString(0));
+            cursor.close();
+        }
+
+        // The whole content is streamed from its own URI.
+        Uri bodyUri = Uri.withAppendedPath(CommentContentProvider.BODY_URI, EMAIL);
+        assertEquals(content, readFully(mResolver.openInputStream(bodyUri)).toString("UTF-8"));
+        assertEquals(CommentContentProvider.BODY_MIME_TYPE, mResolver.getType(bodyUri));
+    }
+
+    public void testSmallCommentBody() throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_RECIPIENT, EMAIL);
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+        mResolver.insert(CommentContentProvider.CONTENT_URI, values);
+        Uri bodyUri = Uri.withAppendedPath(CommentContentProvider.BODY_URI, EMAIL);
+        assertEquals(CONTENT, readFully(mResolver.openInputStream(bodyUri)).toString("UTF-8"));
+    }
+
+    public void testCompression() {
+        CommentsDataSource cds = CommentsDataSource.create(getMockContext());
+        for (int i = 0; i < NUM_TRAINING_COMMENTS; i++) {
+            cds.createComment(i + EMAIL, "great job on the project, see me after class " + i);
+        }
+        assertTrue(cds.trainCompressionDictionary() > 0);
+        cds.setCompressionEnabled(true);
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < COMPRESSED_CONTENT_LENGTH) {
+            builder.append("great job on the project, see me after class ");
+        }
+        String content = builder.append("zebra").toString();
+        cds.createComment(EMAIL, content);
+        cds.close();
+
+        // Clients see only the plain text.
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+        String[] projection = { "content" };  // desired columns
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        assertEquals(1, cursor.getColumnCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(content, cursor.getString(0));
+        cursor.close();
+
+        // The full text is still indexed.
+        cursor = mResolver.query(getSearchUri("zebra", 10, 0), projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(content, cursor.getString(0));
+        cursor.close();
+    }
+
+    // Reads the stream to the end, and closes it.
+    private static ByteArrayOutputStream readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        return out;
+    }
+
+    private static Uri getSearchUri(String query, int limit, int offset) {
+        return CommentContentProvider.SEARCH_URI.buildUpon()
+                .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_QUERY, query)
+                .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(limit))
+                .appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_OFFSET,
+                        Integer.toString(offset))
+                .build();
+    }
+
+    public void testManyQueriesShareOneDataSource() {
+        CountingCommentsDataSourceFactory factory = new CountingCommentsDataSourceFactory();
+        CommentContentProvider provider = createProvider(factory);
+        try {
+            Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+            String[] projection = { "content" };  // desired columns
+            for (int i = 0; i < NUM_QUERIES; i++) {
+                Cursor cursor = provider.query(uri, projection, null, null, null);
+                assertNotNull(cursor);
+                cursor.close();
+            }
+            assertEquals(1, factory.numCreated.get());
+            assertEquals(1, factory.numOpened.get());
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    public void testCachedQuery() {
+        CountingCommentsDataSourceFactory factory = new CountingCommentsDataSourceFactory();
+        CommentContentProvider provider = createProvider(factory);
+        try {
+            Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+            ContentValues values = new ContentValues();
+            values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+            provider.insert(uri, values);
+            CommentsDataSource cds = factory.lastCreated;
+
+            // The first query misses the cache, and the second hits it.
+            String[] projection = { "content" };  // desired columns
+            provider.query(uri, projection, null, null, null).close();
+            long hits = cds.getCacheHitCount();
+            long misses = cds.getCacheMissCount();
+            Cursor cursor = provider.query(uri, projection, null, null, null);
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(CONTENT, cursor.getString(0));
+            cursor.close();
+            assertEquals(hits + 1, cds.getCacheHitCount());
+            assertEquals(misses, cds.getCacheMissCount());
+
+            // Columns that a cached comment lacks are queried instead.
+            String[] otherProjection = { "_id", "recipient_id" };  // desired columns
+            cursor = provider.query(uri, otherProjection, null, null, null);
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(cursor.getLong(0), cursor.getLong(1));
+            cursor.close();
+            assertEquals(hits + 1, cds.getCacheHitCount());
+            assertEquals(misses, cds.getCacheMissCount());
+
+            // A write through the provider invalidates the cached comment.
+            values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT + 2);
+            assertEquals(1, provider.update(uri, values, null, null));
+            cursor = provider.query(uri, projection, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(CONTENT + 2, cursor.getString(0));
+            cursor.close();
+            assertEquals(misses + 1, cds.getCacheMissCount());
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    public void testCacheInvalidatedByOtherDataSource() {
+        Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+        ContentValues values = new ContentValues();
+        values.put(MySQLiteOpenHelper.COLUMN_CONTENT, CONTENT);
+        mResolver.insert(uri, values);
+        String[] projection = { "content" };  // desired columns
+        mResolver.query(uri, projection, null, null, null).close();  // now cached
+
+        // The mock resolver delivers no notifications, so the provider's
+        // cache must be invalidated by the data source itself.
+        CommentsDataSource cds = CommentsDataSource.create(getMockContext());
+        cds.open();
+        assertTrue(cds.updateCommentForRecipient(EMAIL, CONTENT + 2));
+        Cursor cursor = mResolver.query(uri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(CONTENT + 2, cursor.getString(0));
+        cursor.close();
+
+        assertTrue(cds.deleteCommentForRecipient(EMAIL));
+        cds.close();
+        cursor = mResolver.query(uri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testWarmUpOnCreate() throws InterruptedException {
+        final CountingCommentsDataSourceFactory factory = new CountingCommentsDataSourceFactory();
+        factory.warmUpGate = new CountDownLatch(1);
+        final CommentContentProvider provider = createProvider(factory);
+        try {
+            assertTrue(factory.warmUpStarted.await(WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // A query made during the warm-up waits for it rather than repeating it.
+            final CountDownLatch queried = new CountDownLatch(1);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Uri uri = Uri.parse(CommentContentProvider.CONTENT_URI + "/" + EMAIL);
+                    String[] projection = { "content" };  // desired columns
+                    provider.query(uri, projection, null, null, null).close();
+                    queried.countDown();
+                }
+            }).start();
+            assertFalse(queried.await(WARM_UP_BLOCK_MS, TimeUnit.MILLISECONDS));
+            factory.warmUpGate.countDown();
+            assertTrue(queried.await(WARM_UP_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            assertEquals(1, factory.numCreated.get());
+            assertEquals(1, factory.numOpened.get());
+            assertEquals(1, factory.numWarmedUp.get());
+        } finally {
+            factory.warmUpGate.countDown();
+            provider.shutdown();
+        }
+    }
+
+    // Creates a provider of its own, since the factory must be set before the
+    // provider is attached, which opens a data source.
+    private CommentContentProvider createProvider(CommentsDataSourceAbstractFactory factory) {
+        CommentContentProvider provider = new CommentContentProvider();
+        provider.setDataSourceFactory(factory);
+        provider.attachInfo(getMockContext(), null);  // This calls onCreate().
+        return provider;
+    }
+
+    // A factory whose data sources count how many times they are opened and
+    // warmed up, and can be held in the middle of warming up.
+    private static class CountingCommentsDataSourceFactory
+            implements CommentsDataSourceAbstractFactory {
+        // The data sources are opened and warmed up on the provider's thread.
+        final AtomicInteger numCreated = new AtomicInteger();
+        final AtomicInteger numOpened = new AtomicInteger();
+        final AtomicInteger numWarmedUp = new AtomicInteger();
+        volatile CommentsDataSource lastCreated;
+        final CountDownLatch warmUpStarted = new CountDownLatch(1);
+        // If set, warming up waits until this is counted down.
+        volatile CountDownLatch warmUpGate;
+
+        public CommentsDataSource createCommentsDataSource(Context context) {
+            numCreated.incrementAndGet();
+            lastCreated = new CountingCommentsDataSource(context, this);
+            return lastCreated;
+        }
+    }
+
+    private static class CountingCommentsDataSource extends CommentsDataSource {
+        private final CountingCommentsDataSourceFactory mFactory;
+
+        CountingCommentsDataSource(Context context, CountingCommentsDataSourceFactory factory) {
+            super(context, null);  // in-memory database
+            mFactory = factory;
+        }
+
+        @Override
+        public void open() {
+            mFactory.numOpened.incrementAndGet();
+            super.open();
+        }
+
+        @Override
+        public void warmUp() {
+            mFactory.numWarmedUp.incrementAndGet();
+            mFactory.warmUpStarted.countDown();
+            CountDownLatch gate = mFactory.warmUpGate;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            super.warmUp();
+        }
+    }
 }
@@ -0,0 +1,121 @@
+package edu.mills.cs180a.classfeedback.test;
+
+import java.util.NoSuchElementException;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import edu.mills.cs180a.classfeedback.Comment;
+import edu.mills.cs180a.classfeedback.CommentIterator;
+import edu.mills.cs180a.classfeedback.CommentsDataSource;
+
+/**
+ * Checks that {@link CommentIterator} returns every comment exactly once, in
+ * order, however the comments fall across its pages.
+ */
+public class CommentIteratorTest extends AndroidTestCase {
+    private static final String CONTENT = "lorem ipsum";
+    // Small pages make every boundary cheap to reach.
+    private static final int PAGE_SIZE = 4;
+    private CommentsDataSource mCds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCds = new InMemoryCommentsDataSource(getContext());
+        mCds.open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCds.close();
+        super.tearDown();
+    }
+
+    public void testNoComments() {
+        CommentIterator it = mCds.iterateComments(false, PAGE_SIZE);
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail("Expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    public void testOneComment() {
+        assertIteratesAll(1, false);
+    }
+
+    public void testPartPage() {
+        assertIteratesAll(PAGE_SIZE - 1, false);
+    }
+
+    // The last page is full, so one more, empty, page must be read.
+    public void testFullPage() {
+        assertIteratesAll(PAGE_SIZE, false);
+    }
+
+    public void testFullPagePlusOne() {
+        assertIteratesAll(PAGE_SIZE + 1, false);
+    }
+
+    public void testTwoFullPages() {
+        assertIteratesAll(2 * PAGE_SIZE, false);
+    }
+
+    public void testReusedCommentAcrossPages() {
+        assertIteratesAll(PAGE_SIZE + 1, true);
+    }
+
+    public void testCloseEndsIteration() {
+        createComments(PAGE_SIZE + 1);
+        CommentIterator it = mCds.iterateComments(false, PAGE_SIZE);
+        assertNotNull(it.next());
+        it.close();
+        assertFalse(it.hasNext());
+    }
+
+    private void createComments(int numComments) {
+        mCds.beginTransaction();
+        try {
+            for (int i = 0; i < numComments; i++) {
+                mCds.createComment(getEmail(i), CONTENT + i);
+            }
+            mCds.setTransactionSuccessful();
+        } finally {
+            mCds.endTransaction();
+        }
+    }
+
+    // Comments are created in order, so they are iterated in order of i.
+    private void assertIteratesAll(int numComments, boolean reuseComment) {
+        createComments(numComments);
+        CommentIterator it = mCds.iterateComments(reuseComment, PAGE_SIZE);
+        Comment previous = null;
+        try {
+            for (int i = 0; i < numComments; i++) {
+                assertTrue("Missing comment " + i, it.hasNext());
+                Comment comment = it.next();
+                assertEquals(getEmail(i), comment.getRecipient());
+                assertEquals(CONTENT + i, comment.getContent());
+                if (reuseComment && previous != null) {
+                    assertSame(previous, comment);
+                }
+                previous = comment;
+            }
+            assertFalse(it.hasNext());
+        } finally {
+            it.close();
+        }
+    }
+
+    private static String getEmail(int i) {
+        return "student" + i + "@mills.edu";
+    }
+
+    private static class InMemoryCommentsDataSource extends CommentsDataSource {
+        InMemoryCommentsDataSource(Context context) {
+            super(context, null);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package edu.mills.cs180a.classfeedback.test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import edu.mills.cs180a.classfeedback.CommentsDataSource;
+
+/**
+ * Checks that queries are not blocked by a long write transaction when the
+ * database is in write-ahead logging mode.
+ */
+public class CommentsDataSourceConcurrencyTest extends AndroidTestCase {
+    private static final String DATABASE_NAME = "concurrency-test.db";
+    private static final String COMMITTED_EMAIL = "committed@mills.edu";
+    private static final String UNCOMMITTED_EMAIL = "uncommitted@mills.edu";
+    private static final String CONTENT = "lorem ipsum";
+    private static final long TIMEOUT_SECONDS = 5;
+    private CommentsDataSource mCds;
+    private ExecutorService mExecutor;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DATABASE_NAME);
+        mCds = new FileCommentsDataSource(getContext());
+        mCds.open();
+        mCds.createComment(COMMITTED_EMAIL, CONTENT);
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mExecutor.shutdownNow();
+        mCds.close();
+        getContext().deleteDatabase(DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReadsContinueDuringWriteTransaction() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;  // Write-ahead logging is not available.
+        }
+        final CountDownLatch inTransaction = new CountDownLatch(1);
+        final CountDownLatch releaseWriter = new CountDownLatch(1);
+        Future<?> writer = mExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                mCds.beginTransaction();
+                try {
+                    mCds.createComment(UNCOMMITTED_EMAIL, CONTENT);
+                    inTransaction.countDown();
+                    releaseWriter.await(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS);
+                    mCds.setTransactionSuccessful();
+                } finally {
+                    mCds.endTransaction();
+                }
+                return null;
+            }
+        });
+        assertTrue(inTransaction.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // While the writer holds its transaction open, reads on another thread
+        // must complete and see only committed comments.
+        Future<int[]> reader = mExecutor.submit(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return new int[] {
+                    countComments(COMMITTED_EMAIL),
+                    countComments(UNCOMMITTED_EMAIL)
+                };
+            }
+        });
+        int[] counts = reader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertFalse(writer.isDone());
+        assertEquals(1, counts[0]);
+        assertEquals(0, counts[1]);
+
+        releaseWriter.countDown();
+        writer.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(1, countComments(UNCOMMITTED_EMAIL));
+    }
+
+    private int countComments(String recipient) {
+        Cursor cursor = mCds.getCursorForCommentForRecipient(recipient, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private static class FileCommentsDataSource extends CommentsDataSource {
+        FileCommentsDataSource(Context context) {
+            super(context, DATABASE_NAME);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package edu.mills.cs180a.classfeedback.test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.database.SQLException;
+import edu.mills.cs180a.classfeedback.CommentsDataSource;
+import edu.mills.cs180a.classfeedback.CommentsDataSourceAbstractFactory;
+
+/**
+ * A factory for data sources that cannot be opened, as when the database is
+ * corrupt or the disk is full.  This supports testing how failures are handled.
+ */
+public class FailingCommentsDataSourceFactory implements CommentsDataSourceAbstractFactory {
+    private static final AtomicInteger numCloses = new AtomicInteger();
+
+    FailingCommentsDataSourceFactory() {
+    }
+
+    public CommentsDataSource createCommentsDataSource(Context context) {
+        return new FailingCommentsDataSource(context);
+    }
+
+    /**
+     * Gets the number of times a data source made by any such factory has
+     * been closed.
+     *
+     * @return the number of calls to {@link CommentsDataSource#close()}
+     */
+    static int getNumCloses() {
+        return numCloses.get();
+    }
+
+    private static class FailingCommentsDataSource extends CommentsDataSource {
+        FailingCommentsDataSource(Context context) {
+            super(context, null);
+        }
+
+        @Override
+        public synchronized void open() {
+            throw new SQLException("Unable to open database");
+        }
+
+        @Override
+        public synchronized void close() {
+            numCloses.incrementAndGet();
+            super.close();
+        }
+    }
+}
@@ -3,8 +3,16 @@ package edu.mills.cs180a.classfeedback.test;
 import android.content.Context;
 import edu.mills.cs180a.classfeedback.CommentsDataSource;
 
+/**
+ * A data source on an in-memory database shared by every activity under test,
+ * so that tests can read what an activity wrote through it.  It is opened by
+ * the first activity to use it; {@link #open()} does nothing if it is already
+ * open.  {@link #close()} only counts the calls, so that the comments outlive
+ * the activity that wrote them.
+ */
 public class MockCommentsDataSource extends CommentsDataSource {
     private static MockCommentsDataSource instance;
+    private int numCloses;
     
     private MockCommentsDataSource(Context context) {
         super(context, null);
@@ -18,6 +26,16 @@ public class MockCommentsDataSource extends CommentsDataSource {
     }
     
     @Override
-    public void close() {      
+    public synchronized void close() {
+        numCloses++;
+    }
+
+    /**
+     * Gets the number of times this has been closed.
+     *
+     * @return the number of calls to {@link #close()}
+     */
+    public synchronized int getNumCloses() {
+        return numCloses;
     }
 }
@@ -0,0 +1,37 @@
+package edu.mills.cs180a.classfeedback.test;
+
+import android.test.AndroidTestCase;
+import edu.mills.cs180a.classfeedback.Person;
+import edu.mills.cs180a.classfeedback.Roster;
+
+public class RosterTest extends AndroidTestCase {
+    private Roster mRoster;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRoster = Roster.getInstance(getContext());
+        mRoster.waitUntilLoaded();
+    }
+
+    public void testLookupByEmail() {
+        assertTrue(mRoster.size() > 0);
+        for (int i = 0; i < mRoster.size(); i++) {
+            Person person = mRoster.get(i);
+            assertEquals(i, mRoster.indexOf(person.getEmail()));
+            assertSame(person, mRoster.getByEmail(person.getEmail()));
+        }
+        assertEquals(-1, mRoster.indexOf("nobody@mills.edu"));
+        assertNull(mRoster.getByEmail("nobody@mills.edu"));
+    }
+
+    // The roster file lists the same people as the old hard-coded array.
+    @SuppressWarnings("deprecation")
+    public void testMatchesPersonEveryone() {
+        assertEquals(Person.everyone.length, mRoster.size());
+        for (int i = 0; i < Person.everyone.length; i++) {
+            assertEquals(Person.everyone[i].getEmail(), mRoster.get(i).getEmail());
+            assertEquals(Person.everyone[i].getImageId(), mRoster.get(i).getImageId());
+        }
+    }
+}
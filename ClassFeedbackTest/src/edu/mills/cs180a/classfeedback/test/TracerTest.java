@@ -0,0 +1,134 @@
+package edu.mills.cs180a.classfeedback.test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.util.Log;
+import edu.mills.cs180a.classfeedback.CommentsDataSource;
+import edu.mills.cs180a.classfeedback.Tracer;
+
+/**
+ * Checks that {@link Tracer} records only events of enabled priorities, and
+ * keeps the most recent {@link Tracer#CAPACITY} of them, oldest first.  Events
+ * are made by creating comments, which traces {@code cds.createComment} at
+ * {@link Log#DEBUG} and {@code cds.insertComment} at {@link Log#VERBOSE}.
+ */
+public class TracerTest extends AndroidTestCase {
+    private static final String RECIPIENT = "foo@bar.com";
+    private static final String CONTENT = "lorem ipsum";
+    private CommentsDataSource mCds;
+    private int mSavedMinPriority;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSavedMinPriority = Log.ASSERT + 1;
+        for (int priority = Log.ASSERT; priority >= Log.VERBOSE; priority--) {
+            if (Tracer.isEnabled(priority)) {
+                mSavedMinPriority = priority;
+            }
+        }
+        mCds = new InMemoryCommentsDataSource(getContext());
+        mCds.open();
+        Tracer.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCds.close();
+        Tracer.setMinPriority(mSavedMinPriority);
+        Tracer.clear();
+        super.tearDown();
+    }
+
+    public void testLowerPrioritiesIgnored() throws IOException {
+        Tracer.setMinPriority(Log.INFO);
+        assertFalse(Tracer.isEnabled(Log.DEBUG));
+        assertTrue(Tracer.isEnabled(Log.INFO));
+        mCds.createComment(RECIPIENT, CONTENT);
+        assertEquals(0, getEvents().size());
+
+        Tracer.setMinPriority(Log.DEBUG);
+        mCds.createComment(RECIPIENT, CONTENT);
+        List<String> events = getEvents();
+        assertEquals(1, events.size());
+        assertTrue(events.get(0).contains(" cds.createComment "
+                + Integer.toHexString(RECIPIENT.hashCode()) + " "));
+
+        Tracer.clear();
+        Tracer.setMinPriority(Log.VERBOSE);
+        mCds.createComment(RECIPIENT, CONTENT);
+        events = getEvents();
+        assertEquals(2, events.size());
+        assertTrue(events.get(0).contains(" cds.insertComment "));
+        assertTrue(events.get(1).contains(" cds.createComment "));
+    }
+
+    public void testDisabled() throws IOException {
+        Tracer.setMinPriority(Log.ASSERT + 1);
+        assertFalse(Tracer.isEnabled(Log.ASSERT));
+        mCds.createComment(RECIPIENT, CONTENT);
+        assertEquals(0, getEvents().size());
+    }
+
+    public void testWrapAround() throws IOException {
+        Tracer.setMinPriority(Log.DEBUG);
+        int numEvents = Tracer.CAPACITY + 3;
+        for (int i = 0; i < numEvents; i++) {
+            mCds.createComment(getRecipient(i), CONTENT);
+        }
+        List<String> lines = dump();
+        assertTrue(lines.get(0).startsWith("Trace events 3 to " + numEvents + " "));
+        List<String> events = lines.subList(1, lines.size());
+        assertEquals(Tracer.CAPACITY, events.size());
+        // The oldest three were overwritten, and the rest are in order.
+        for (int i = 0; i < events.size(); i++) {
+            assertTrue(events.get(i).contains(" cds.createComment "
+                    + Integer.toHexString(getRecipient(i + 3).hashCode()) + " "));
+        }
+    }
+
+    public void testClear() throws IOException {
+        Tracer.setMinPriority(Log.DEBUG);
+        mCds.createComment(RECIPIENT, CONTENT);
+        Tracer.clear();
+        assertEquals(0, getEvents().size());
+    }
+
+    private static String getRecipient(int i) {
+        return "student" + i + "@mills.edu";
+    }
+
+    // Returns the lines of the dump, starting with its header.
+    private static List<String> dump() throws IOException {
+        StringWriter out = new StringWriter();
+        PrintWriter writer = new PrintWriter(out);
+        Tracer.dump(writer);
+        writer.flush();
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new StringReader(out.toString()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines;
+    }
+
+    private static List<String> getEvents() throws IOException {
+        List<String> lines = dump();
+        return lines.subList(1, lines.size());
+    }
+
+    private static class InMemoryCommentsDataSource extends CommentsDataSource {
+        InMemoryCommentsDataSource(Context context) {
+            super(context, null);
+        }
+    }
+}
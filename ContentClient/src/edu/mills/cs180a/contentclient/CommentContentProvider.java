@@ -16,5 +16,9 @@ public class CommentContentProvider {
     public static final String AUTHORITY = "edu.mills.cs180a.classfeedback";
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY
             + "/comments");
+    public static final Uri BATCH_URI = Uri.withAppendedPath(CONTENT_URI, "batch");
+    public static final String QUERY_PARAMETER_RECIPIENT = "recipient";
+    public static final String COLUMN_RECIPIENT = "recipient";
+    public static final String COLUMN_CONTENT = "content";
 
 }
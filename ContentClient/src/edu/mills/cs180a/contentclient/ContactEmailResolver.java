@@ -0,0 +1,154 @@
+package edu.mills.cs180a.contentclient;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Finds the email address of a contact, remembering the addresses of the
+ * most recently resolved contacts.  The contact id is read from the contact
+ * URI where possible, so an address that is not cached takes a single query
+ * of the contacts provider, and one that is cached takes none.  The whole
+ * cache is cleared whenever the contacts provider reports a change, since it
+ * does not say which contacts changed.
+ *
+ * <P>The cache is only kept up to date between {@link #start()} and
+ * {@link #stop()}.  {@link #getEmail(Uri)} queries the provider on a cache
+ * miss, so it should not be called on the main thread where that matters.
+ */
+class ContactEmailResolver {
+    private static final String TAG = "ContactEmailResolver";
+    private static final int CACHE_SIZE = 100;
+    private static final String[] ID_PROJECTION = { ContactsContract.Contacts._ID };
+    private static final String[] EMAIL_PROJECTION = {
+        ContactsContract.CommonDataKinds.Email.ADDRESS
+    };
+    private static final String EMAIL_SELECTION =
+            ContactsContract.CommonDataKinds.Email.CONTACT_ID + " = ?";
+    // Put the contact's primary address first, if it has one.
+    private static final String EMAIL_ORDER =
+            ContactsContract.CommonDataKinds.Email.IS_PRIMARY + " DESC";
+    private static final long NO_ID = -1;
+
+    private final ContentResolver mResolver;
+    // Maps contact ids to email addresses, with "" for contacts without one.
+    private final LruCache<Long, String> mCache = new LruCache<Long, String>(CACHE_SIZE);
+    // Incremented whenever the cache is cleared, so that an address read
+    // before a change is not cached after it.  This is guarded by mCache.
+    private int mGeneration;
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (mCache) {
+                mGeneration++;
+                mCache.evictAll();
+            }
+        }
+    };
+
+    /**
+     * Constructs a resolver, whose cache is not kept up to date until
+     * {@link #start()} is called.
+     *
+     * @param resolver the content resolver through which to query contacts
+     */
+    ContactEmailResolver(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Starts listening for changes to contacts.
+     */
+    void start() {
+        mResolver.registerContentObserver(ContactsContract.AUTHORITY_URI, true, mObserver);
+    }
+
+    /**
+     * Stops listening for changes to contacts and clears the cache.
+     */
+    void stop() {
+        mResolver.unregisterContentObserver(mObserver);
+        mObserver.onChange(false);
+    }
+
+    /**
+     * Gets the email address of a contact.  If the contact has more than one,
+     * the primary address is returned if there is one, or else any of them.
+     *
+     * @param contactUri the URI of the contact, such as one returned by a
+     *        contact picker
+     * @return the email address, or the empty string if the contact has none
+     */
+    String getEmail(Uri contactUri) {
+        long contactId = getContactId(contactUri);
+        if (contactId == NO_ID) {
+            Log.w(TAG, "No contact found for " + contactUri);
+            return "";
+        }
+        int generation;
+        synchronized (mCache) {
+            String email = mCache.get(contactId);
+            if (email != null) {
+                return email;
+            }
+            generation = mGeneration;
+        }
+        String email = queryEmail(contactId);
+        synchronized (mCache) {
+            if (generation == mGeneration) {
+                mCache.put(contactId, email);
+            }
+        }
+        return email;
+    }
+
+    // Contact URIs end with the contact id, including lookup URIs, which the
+    // contact picker returns.  Any other URI is queried for the id.
+    private long getContactId(Uri contactUri) {
+        try {
+            long contactId = ContentUris.parseId(contactUri);
+            if (contactId >= 0) {
+                return contactId;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through and query for the id.
+        }
+        Cursor cursor = mResolver.query(contactUri, ID_PROJECTION, null, null, null);
+        if (cursor == null) {
+            return NO_ID;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : NO_ID;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryEmail(long contactId) {
+        Cursor cursor = mResolver.query(ContactsContract.CommonDataKinds.Email.CONTENT_URI,
+                EMAIL_PROJECTION, EMAIL_SELECTION, new String[] { Long.toString(contactId) },
+                EMAIL_ORDER);
+        if (cursor == null) {
+            Log.e(TAG, "Cursor returned by content resolver is null.");
+            return "";
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                Log.w(TAG, "No email address found for contact.");
+                return "";
+            }
+            if (cursor.getCount() > 1) {
+                Log.d(TAG, "Additional emails ignored.");
+            }
+            String email = cursor.getString(0);
+            return email == null ? "" : email;
+        } finally {
+            cursor.close();
+        }
+    }
+}
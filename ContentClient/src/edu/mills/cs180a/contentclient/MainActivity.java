@@ -1,11 +1,15 @@
 
 package edu.mills.cs180a.contentclient;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.provider.ContactsContract;
 import android.util.Log;
@@ -16,7 +20,8 @@ import android.widget.Toast;
 
 /**
  * An {@code Activity} that enables the user to pick a contact, then retrieve
- * comments meant for the contact.
+ * comments meant for the contact, or to retrieve the comments meant for every
+ * contact with a single batch query.
  *
  * @author ellen.spertus@gmail.com (Ellen Spertus)
  * @author ajkwak@users.noreply.github.com (AJ Parmidge)
@@ -24,11 +29,14 @@ import android.widget.Toast;
 public class MainActivity extends Activity {
     private static final int PICK_REQUEST = 1;
     private static final String TAG = "MainActivity";
+    private ContactEmailResolver mEmailResolver;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        mEmailResolver = new ContactEmailResolver(getContentResolver());
+        mEmailResolver.start();
 
         Button fetchOneButton = (Button) findViewById(R.id.fetchOneButton);
         fetchOneButton.setOnClickListener(new OnClickListener(){
@@ -39,50 +47,82 @@ public class MainActivity extends Activity {
                 startActivityForResult(i, PICK_REQUEST);
             }
         });
+        Button fetchAllButton = (Button) findViewById(R.id.fetchAllButton);
+        fetchAllButton.setOnClickListener(new OnClickListener(){
+            @Override
+            public void onClick(View view) {
+                new FetchAllTask().execute();
+            }
+        });
     }
 
-    // Code adapted from section 11.17 of The Android Cookbook by Ian Darwin (O'Reilly).
-    // Returns the empty string if record has no email address.
-    private String getContactEmail(Uri contactUri) {
-        // Get id of contact.
-        Cursor contactCursor = getContentResolver().query(contactUri, null, null, null, null);
-        int columnIndexForId = contactCursor.getColumnIndex(ContactsContract.Contacts._ID);
-        if (!contactCursor.moveToFirst()) {
-            contactCursor.close();
-            return "";
+    @Override
+    protected void onDestroy() {
+        mEmailResolver.stop();
+        super.onDestroy();
+    }
+
+    // Gets the comments for every contact with an email address: one query
+    // for all of the addresses, then one batch query to the comments provider.
+    private class FetchAllTask extends AsyncTask<Void, Void, int[]> {
+        @Override
+        protected int[] doInBackground(Void... params) {
+            Set<String> emails = getAllContactEmails();
+            Uri.Builder builder = CommentContentProvider.BATCH_URI.buildUpon();
+            for (String email : emails) {
+                builder.appendQueryParameter(CommentContentProvider.QUERY_PARAMETER_RECIPIENT,
+                        email);
+            }
+            String[] projection = {
+                CommentContentProvider.COLUMN_RECIPIENT, CommentContentProvider.COLUMN_CONTENT
+            };
+            Cursor cursor = getContentResolver().query(builder.build(), projection,
+                    null, null, null);
+            if (cursor == null) {
+                Log.e(TAG, "Cursor returned by content resolver is null.");
+                return new int[] { 0, emails.size() };
+            }
+            int numComments = cursor.getCount();
+            while (cursor.moveToNext()) {
+                Log.i(TAG, "Comment for " + cursor.getString(0) + ": " + cursor.getString(1));
+            }
+            cursor.close();
+            return new int[] { numComments, emails.size() };
         }
-        int contactId = contactCursor.getInt(columnIndexForId);
 
-        // Now that we have an id, we can request the email address.
-        Cursor emailsCursor = getContentResolver().query(
-                ContactsContract.CommonDataKinds.Email.CONTENT_URI, null,
-                ContactsContract.CommonDataKinds.Email.CONTACT_ID + "=" + contactId,
-                null, null);
+        @Override
+        protected void onPostExecute(int[] counts) {
+            Toast.makeText(MainActivity.this,
+                    getString(R.string.fetch_all_result, counts[0], counts[1]),
+                    Toast.LENGTH_LONG).show();
+        }
+    }
 
-        // Get the (first) email address.
-        String email;
-        if (emailsCursor.moveToFirst()) {
-            email = emailsCursor.getString(emailsCursor.getColumnIndex(
-                    ContactsContract.CommonDataKinds.Email.ADDRESS));
-            if (emailsCursor.moveToNext()) {
-                Log.d(TAG, "Additional emails ignored.");
+    // Returns the distinct email addresses of all contacts.
+    private Set<String> getAllContactEmails() {
+        Set<String> emails = new LinkedHashSet<String>();
+        String[] projection = { ContactsContract.CommonDataKinds.Email.ADDRESS };
+        Cursor cursor = getContentResolver().query(
+                ContactsContract.CommonDataKinds.Email.CONTENT_URI, projection,
+                null, null, null);
+        if (cursor == null) {
+            return emails;
+        }
+        while (cursor.moveToNext()) {
+            String email = cursor.getString(0);
+            if (email != null) {
+                emails.add(email);
             }
-        } else {
-            email = "";
-            Log.w(TAG, "No email address found for contact.");
         }
-
-        // Clean up before returning.
-        contactCursor.close();
-        emailsCursor.close();
-        return email;
+        cursor.close();
+        return emails;
     }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == PICK_REQUEST && resultCode == RESULT_OK) {
             // Extract email address.
-            String email = getContactEmail(data.getData());
+            String email = mEmailResolver.getEmail(data.getData());
             Toast.makeText(this, "Found email: " + email, Toast.LENGTH_LONG).show();
 
             // Request comments.
@@ -0,0 +1,123 @@
+package edu.mills.cs180a.contentclient;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+/**
+ * Checks that {@link ContactEmailResolver} queries the contacts provider only
+ * for addresses it has not cached.  This is in the package of the class under
+ * test, which is package-private.
+ */
+public class ContactEmailResolverTest extends AndroidTestCase {
+    private static final long CONTACT_ID = 42;
+    private static final String LOOKUP_KEY = "lookup-key";
+    private static final String EMAIL = "foo@bar.com";
+    private static final String OTHER_EMAIL = "baz@bar.com";
+    private FakeContactsProvider mProvider;
+    private ContactEmailResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeContactsProvider();
+        MockContentResolver contentResolver = new MockContentResolver();
+        contentResolver.addProvider(ContactsContract.AUTHORITY, mProvider);
+        mResolver = new ContactEmailResolver(contentResolver);
+    }
+
+    public void testCachedByContactId() {
+        mProvider.addContact(CONTACT_ID, EMAIL, OTHER_EMAIL);
+        Uri uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, CONTACT_ID);
+        // The first address is the primary one, if there is one.
+        assertEquals(EMAIL, mResolver.getEmail(uri));
+        assertEquals(1, mProvider.numQueries);
+        assertEquals(EMAIL, mResolver.getEmail(uri));
+        assertEquals(1, mProvider.numQueries);
+    }
+
+    public void testContactWithoutEmailCached() {
+        mProvider.addContact(CONTACT_ID);
+        Uri uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, CONTACT_ID);
+        assertEquals("", mResolver.getEmail(uri));
+        assertEquals("", mResolver.getEmail(uri));
+        assertEquals(1, mProvider.numQueries);
+    }
+
+    // A URI that does not end with the contact id is queried for it every
+    // time, but the address is still cached.
+    public void testContactIdQueried() {
+        mProvider.addContact(CONTACT_ID, EMAIL);
+        mProvider.addLookupKey(LOOKUP_KEY, CONTACT_ID);
+        Uri uri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_URI, LOOKUP_KEY);
+        assertEquals(EMAIL, mResolver.getEmail(uri));
+        assertEquals(2, mProvider.numQueries);
+        assertEquals(EMAIL, mResolver.getEmail(uri));
+        assertEquals(3, mProvider.numQueries);
+    }
+
+    public void testUnknownContact() {
+        Uri uri = Uri.withAppendedPath(ContactsContract.Contacts.CONTENT_URI, LOOKUP_KEY);
+        assertEquals("", mResolver.getEmail(uri));
+        assertEquals(1, mProvider.numQueries);
+    }
+
+    public void testStopClearsCache() {
+        mProvider.addContact(CONTACT_ID, EMAIL);
+        Uri uri = ContentUris.withAppendedId(ContactsContract.Contacts.CONTENT_URI, CONTACT_ID);
+        mResolver.start();
+        assertEquals(EMAIL, mResolver.getEmail(uri));
+        mResolver.stop();
+
+        // A change while the resolver was stopped is seen.
+        mProvider.addContact(CONTACT_ID, OTHER_EMAIL);
+        assertEquals(OTHER_EMAIL, mResolver.getEmail(uri));
+        assertEquals(2, mProvider.numQueries);
+    }
+
+    // A contacts provider that answers only the queries made by the resolver,
+    // and counts them.
+    private static class FakeContactsProvider extends MockContentProvider {
+        private final Map<Long, String[]> mEmails = new HashMap<Long, String[]>();
+        private final Map<String, Long> mContactIds = new HashMap<String, Long>();
+        int numQueries;
+
+        // The addresses are listed with the primary one, if any, first.
+        void addContact(long contactId, String... emails) {
+            mEmails.put(contactId, emails);
+        }
+
+        void addLookupKey(String lookupKey, long contactId) {
+            mContactIds.put(lookupKey, contactId);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            numQueries++;
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (ContactsContract.CommonDataKinds.Email.CONTENT_URI.equals(uri)) {
+                String[] emails = mEmails.get(Long.valueOf(selectionArgs[0]));
+                if (emails != null) {
+                    for (String email : emails) {
+                        cursor.addRow(new Object[] { email });
+                    }
+                }
+            } else {
+                Long contactId = mContactIds.get(uri.getLastPathSegment());
+                if (contactId != null) {
+                    cursor.addRow(new Object[] { contactId });
+                }
+            }
+            return cursor;
+        }
+    }
+}